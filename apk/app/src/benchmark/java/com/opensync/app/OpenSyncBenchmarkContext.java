@@ -0,0 +1,85 @@
+package com.opensync.app;
+
+import android.app.usage.NetworkStatsManager;
+import android.app.usage.UsageStatsManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.media.session.MediaSessionManager;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Host JVM stand-in for the service Context.
+ *
+ * The system services used by uncached handlers (streaming, app usage) are
+ * stubs: the framework managers have no public constructor, so they are
+ * allocated without one. On the unit test android.jar (returnDefaultValues)
+ * every call on them returns its default, i.e. a service with nothing to
+ * report, and the handlers run their full path up to the reply. Other
+ * services are missing, handlers which need one fail the way they do when
+ * the service is missing.
+ */
+public class OpenSyncBenchmarkContext extends ContextWrapper {
+    private static final Class<?>[] STUB_SERVICES = {
+            MediaSessionManager.class, UsageStatsManager.class, NetworkStatsManager.class
+    };
+    private static final String[] STUB_NAMES = {
+            Context.MEDIA_SESSION_SERVICE, Context.USAGE_STATS_SERVICE, Context.NETWORK_STATS_SERVICE
+    };
+
+    private final File cacheDir;
+    private final Map<String, Object> services = new HashMap<>();
+
+    public OpenSyncBenchmarkContext(File cacheDir) {
+        super(null);
+        this.cacheDir = cacheDir;
+        for (int i = 0; i < STUB_SERVICES.length; i++) {
+            services.put(STUB_NAMES[i], allocate(STUB_SERVICES[i]));
+        }
+    }
+
+    private static Object allocate(Class<?> type) {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            return unsafe.getClass().getMethod("allocateInstance", Class.class).invoke(unsafe, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot stub " + type.getName(), e);
+        }
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.opensync.app";
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        return services.get(name);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return null;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return cacheDir;
+    }
+}
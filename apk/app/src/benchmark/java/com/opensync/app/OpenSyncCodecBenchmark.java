@@ -0,0 +1,122 @@
+package com.opensync.app;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/*
+ * Compares the JSON text path with CBOR on an osandroid_app_usage_get reply:
+ * payload size, encode and decode time.
+ *
+ *   ./gradlew :app:codecBenchmark -PbenchmarkArgs="--apps 50,200,1000"
+ *
+ * Options:
+ *   --apps LIST        installed apps in the reply, comma separated (20,100,500)
+ *   --iterations N     measured encodes/decodes per size (2000)
+ */
+public class OpenSyncCodecBenchmark {
+    private static final int WARMUP = 500;
+
+    public static void main(String[] args) throws Exception {
+        String apps = "20,100,500";
+        int iterations = 2000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--apps": apps = args[i + 1]; break;
+                case "--iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%6s %10s %10s %6s %12s %12s %12s %12s%n",
+                "apps", "json(B)", "cbor(B)", "ratio", "json enc(us)", "cbor enc(us)", "json dec(us)", "cbor dec(us)");
+        for (String n : apps.split(",")) {
+            run(Integer.parseInt(n.trim()), iterations);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int apps, int iterations) throws JSONException {
+        JSONObject reply = appUsageReply(apps);
+        OpenSyncIPCBuffer out = new OpenSyncIPCBuffer();
+
+        /* The JSON path as Dispatch runs it: toString() into the reply buffer */
+        out.reset();
+        out.appendUtf8(reply.toString());
+        byte[] json = out.toByteArray();
+        out.reset();
+        OpenSyncCbor.encode(reply, out);
+        byte[] cbor = out.toByteArray();
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            out.reset();
+            out.appendUtf8(reply.toString());
+            out.reset();
+            OpenSyncCbor.encode(reply, out);
+            sink += new JSONObject(new String(json, StandardCharsets.UTF_8)).length();
+            sink += OpenSyncCbor.decodeObject(cbor, cbor.length).length();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            out.reset();
+            out.appendUtf8(reply.toString());
+        }
+        long jsonEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            out.reset();
+            OpenSyncCbor.encode(reply, out);
+        }
+        long cborEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += new JSONObject(new String(json, StandardCharsets.UTF_8)).length();
+        }
+        long jsonDecode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += OpenSyncCbor.decodeObject(cbor, cbor.length).length();
+        }
+        long cborDecode = System.nanoTime() - start;
+
+        System.out.printf("%6d %10d %10d %6.2f %12.1f %12.1f %12.1f %12.1f%s%n",
+                apps, json.length, cbor.length, cbor.length / (double) json.length,
+                jsonEncode / 1000.0 / iterations, cborEncode / 1000.0 / iterations,
+                jsonDecode / 1000.0 / iterations, cborDecode / 1000.0 / iterations,
+                sink == 0 ? " " : "");
+    }
+
+    /* Same layout as OpenSyncAPPUsage.osandroidAppUsageGet() */
+    private static JSONObject appUsageReply(int apps) throws JSONException {
+        Random random = new Random(apps);
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("api", "osandroid_app_usage_get");
+
+        JSONArray paramsArray = new JSONArray();
+        paramsArray.put(new JSONObject().put("time_period", 3600));
+
+        JSONArray appUsageArray = new JSONArray();
+        for (int i = 0; i < apps; i++) {
+            JSONObject appEntry = new JSONObject();
+            appEntry.put("app_name", "com.vendor" + (i % 17) + ".app.package" + i);
+            appEntry.put("launch_count", random.nextInt(50));
+            appEntry.put("foreground_time", (long) random.nextInt(3_600_000));
+            appEntry.put("usage_rx_bytes", (long) (random.nextDouble() * 5e9));
+            appEntry.put("usage_tx_bytes", (long) (random.nextDouble() * 5e8));
+            appUsageArray.put(appEntry);
+        }
+        paramsArray.put(new JSONObject().put("app_usage", appUsageArray));
+        jsonObject.put("params", paramsArray);
+        jsonObject.put("errCode", "200");
+        jsonObject.put("errMsg", "");
+        return jsonObject;
+    }
+}
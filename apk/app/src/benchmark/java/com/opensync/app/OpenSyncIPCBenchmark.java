@@ -0,0 +1,379 @@
+package com.opensync.app;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Drives OpenSyncIPCServer on a plain JVM with N concurrent REQ clients and
+ * reports throughput and latency per API.
+ *
+ *   ./gradlew :app:ipcBenchmark -PbenchmarkArgs="--clients 8 --workers 4 --duration 20"
+ *
+ * Options:
+ *   --clients N        concurrent REQ clients (4)
+ *   --workers N        IPC worker threads (BuildConfig.OSYNC_IPC_WORKERS)
+ *   --duration S       measured seconds (10)
+ *   --warmup S         seconds before measuring (3)
+ *   --timeout MS       reply timeout, a timed out client reconnects (2000)
+ *   --deadline MS      timeout_ms sent with every request, 0 sends none (0)
+ *   --encoding E       json, or cbor for CBOR requests and replies (json)
+ *   --pending N        requests queued by the server at most (BuildConfig.OSYNC_IPC_MAX_PENDING)
+ *   --mix LIST         api:weight,... (see DEFAULT_MIX)
+ *   --params API=JSON  params of one API in the mix, may be repeated, empty sends none
+ *   --fresh LIST       APIs whose params object gets a per-request "seq", so
+ *                      OpenSyncSingleFlight never serves them a shared result (see DEFAULT_FRESH)
+ *
+ * The identity APIs are answered from OpenSyncResponseCache, streaming and app
+ * usage run their handler on every request against the stub services of
+ * OpenSyncBenchmarkContext. APIs which need another Android system service
+ * fail the way they do when the service is missing.
+ */
+public class OpenSyncIPCBenchmark {
+    private static final String DEFAULT_MIX =
+            "osp_unit_model_get:2,osp_unit_sw_version_get:2,osp_unit_sku_get:1," +
+            "osandroid_streaming_get:3,osandroid_app_usage_get:3," +
+            "osandroid_job_status_get:1,osandroid_batch:1";
+    private static final String DEFAULT_FRESH = "osandroid_app_usage_get";
+    private static final Map<String, String> DEFAULT_PARAMS = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_PARAMS.put("osandroid_job_status_get", "{\"job_id\":\"benchmark\"}");
+        DEFAULT_PARAMS.put("osandroid_streaming_get", "");
+        DEFAULT_PARAMS.put("osandroid_app_usage_get", "{\"time_period\":60}");
+        DEFAULT_PARAMS.put("osandroid_batch",
+                "[{\"api\":\"osp_unit_model_get\"},{\"api\":\"osp_unit_sku_get\"}," +
+                "{\"api\":\"osp_unit_vendor_name_get\"}]");
+    }
+
+    private int clients = 4;
+    private int workers = BuildConfig.OSYNC_IPC_WORKERS;
+    private int durationSec = 10;
+    private int warmupSec = 3;
+    private int timeoutMs = 2000;
+    private int deadlineMs = 0;
+    private String encoding = OpenSyncCbor.ENCODING_JSON;
+    private int maxPending = BuildConfig.OSYNC_IPC_MAX_PENDING;
+    private String mix = DEFAULT_MIX;
+    private String fresh = DEFAULT_FRESH;
+    private final Map<String, String> params = new LinkedHashMap<>(DEFAULT_PARAMS);
+
+    private String[] apis;
+    private byte[][] requests;
+    /* Request JSON of the fresh APIs, null for the others */
+    private String[] freshRequests;
+    private final AtomicLong seq = new AtomicLong();
+    private int[] cumulativeWeights;
+
+    public static void main(String[] args) throws Exception {
+        OpenSyncIPCBenchmark benchmark = new OpenSyncIPCBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) throws JSONException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--clients": clients = Integer.parseInt(value); break;
+                case "--workers": workers = Integer.parseInt(value); break;
+                case "--duration": durationSec = Integer.parseInt(value); break;
+                case "--warmup": warmupSec = Integer.parseInt(value); break;
+                case "--timeout": timeoutMs = Integer.parseInt(value); break;
+                case "--deadline": deadlineMs = Integer.parseInt(value); break;
+                case "--encoding": encoding = value; break;
+                case "--pending": maxPending = Integer.parseInt(value); break;
+                case "--mix": mix = value; break;
+                case "--fresh": fresh = value; break;
+                case "--params":
+                    int eq = value.indexOf('=');
+                    if (eq <= 0) {
+                        throw new IllegalArgumentException("Expected API=JSON: " + value);
+                    }
+                    params.put(value.substring(0, eq), value.substring(eq + 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        List<String> freshApis = Arrays.asList(fresh.split(","));
+        String[] entries = mix.split(",");
+        apis = new String[entries.length];
+        requests = new byte[entries.length][];
+        freshRequests = new String[entries.length];
+        cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].trim().split(":");
+            apis[i] = parts[0];
+            total += parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            cumulativeWeights[i] = total;
+            String param = params.getOrDefault(apis[i], "[{}]");
+            String request = "{\"api\":\"" + apis[i] + "\"" +
+                    (deadlineMs > 0 ? ",\"timeout_ms\":" + deadlineMs : "") +
+                    (param.isEmpty() ? "" : ",\"params\":" + param) + "}";
+            requests[i] = encode(request);
+            if (freshApis.contains(apis[i]) && new JSONObject(request).optJSONObject("params") != null) {
+                freshRequests[i] = request;
+            }
+        }
+    }
+
+    private byte[] encode(String request) throws JSONException {
+        if (OpenSyncCbor.ENCODING_CBOR.equals(encoding)) {
+            OpenSyncIPCBuffer out = new OpenSyncIPCBuffer();
+            OpenSyncCbor.encode(new JSONObject(request), out);
+            return out.toByteArray();
+        }
+        return request.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* The request of mix entry i, built again with a new seq for the fresh APIs */
+    private byte[] request(int i) {
+        if (freshRequests[i] == null) {
+            return requests[i];
+        }
+        try {
+            JSONObject request = new JSONObject(freshRequests[i]);
+            request.getJSONObject("params").put("seq", seq.incrementAndGet());
+            return encode(request.toString());
+        } catch (JSONException e) {
+            /* Checked by parseArgs, cannot happen */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void run() throws Exception {
+        File cacheDir = Files.createTempDirectory("opensync-benchmark").toFile();
+
+        OpenSyncIPCServer server = new OpenSyncIPCServer(new OpenSyncBenchmarkContext(cacheDir), workers, maxPending, null);
+        Thread serverThread = new Thread(server, "OpenSyncIPCServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (server.getEndpoint() == null) {
+            Thread.sleep(10);
+        }
+        String endpoint = server.getEndpoint();
+
+        System.out.println("endpoint " + endpoint + ", workers " + workers + ", pending " + maxPending +
+                ", clients " + clients + ", deadline " + deadlineMs + "ms" +
+                ", warmup " + warmupSec + "s, duration " + durationSec + "s");
+        System.out.println("mix " + mix + ", fresh " + fresh + ", encoding " + encoding);
+
+        long start = System.nanoTime() + warmupSec * 1_000_000_000L;
+        long end = start + durationSec * 1_000_000_000L;
+        ZContext zContext = new ZContext();
+        List<Client> clientList = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(zContext, endpoint, start, end, done);
+            clientList.add(client);
+            new Thread(client, "OpenSyncBenchmarkClient-" + i).start();
+        }
+        done.await();
+
+        Stats[] merged = new Stats[apis.length];
+        for (int i = 0; i < apis.length; i++) {
+            merged[i] = new Stats();
+            for (Client client : clientList) {
+                merged[i].merge(client.stats[i]);
+            }
+        }
+        report(merged);
+        zContext.close();
+    }
+
+    private int pickRequest() {
+        int r = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) {
+                return i;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    private void report(Stats[] stats) {
+        Stats all = new Stats();
+        System.out.println();
+        System.out.printf("%-32s %9s %7s %7s %10s %9s %9s %9s %9s %9s%n",
+                "api", "count", "errors", "timeout", "req/s", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)");
+        for (int i = 0; i < stats.length; i++) {
+            printRow(apis[i], stats[i]);
+            all.merge(stats[i]);
+        }
+        printRow("TOTAL", all);
+
+        for (int i = 0; i < stats.length; i++) {
+            System.out.println();
+            System.out.println(apis[i] + " latency histogram");
+            stats[i].printHistogram();
+        }
+    }
+
+    private void printRow(String api, Stats s) {
+        long[] sorted = s.sortedLatencies();
+        System.out.printf("%-32s %9d %7d %7d %10.1f %9d %9d %9d %9d %9d%n",
+                api, sorted.length, s.errors, s.timeouts, sorted.length / (double) durationSec,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                percentile(sorted, 99.9), sorted.length > 0 ? sorted[sorted.length - 1] / 1000 : 0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000;
+    }
+
+    private static boolean isOk(byte[] reply) {
+        /* errCode is a 3 digit string, 200 and 202 count as success */
+        if (OpenSyncCbor.isCbor(reply, reply.length)) {
+            try {
+                return OpenSyncCbor.decodeObject(reply, reply.length).optString("errCode").startsWith("20");
+            } catch (JSONException e) {
+                return false;
+            }
+        }
+        String text = new String(reply, StandardCharsets.UTF_8);
+        int idx = text.lastIndexOf("\"errCode\":\"");
+        return idx >= 0 && text.startsWith("20", idx + 11);
+    }
+
+    private class Client implements Runnable {
+        private final ZContext zContext;
+        private final String endpoint;
+        private final long start;
+        private final long end;
+        private final CountDownLatch done;
+        final Stats[] stats;
+
+        Client(ZContext zContext, String endpoint, long start, long end, CountDownLatch done) {
+            this.zContext = zContext;
+            this.endpoint = endpoint;
+            this.start = start;
+            this.end = end;
+            this.done = done;
+            stats = new Stats[apis.length];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new Stats();
+            }
+        }
+
+        private ZMQ.Socket connect() {
+            ZMQ.Socket socket = zContext.createSocket(SocketType.REQ);
+            socket.setReceiveTimeOut(timeoutMs);
+            socket.setLinger(0);
+            socket.connect(endpoint);
+            return socket;
+        }
+
+        @Override
+        public void run() {
+            ZMQ.Socket socket = connect();
+            try {
+                long now;
+                while (System.nanoTime() < end) {
+                    int i = pickRequest();
+                    byte[] request = request(i);
+                    now = System.nanoTime();
+                    socket.send(request, 0);
+                    byte[] reply = socket.recv(0);
+                    long latency = System.nanoTime() - now;
+
+                    if (reply == null) {
+                        /* A REQ socket cannot send again before a reply, start over */
+                        zContext.destroySocket(socket);
+                        socket = connect();
+                        if (now >= start) {
+                            stats[i].timeouts++;
+                        }
+                    } else if (now >= start) {
+                        stats[i].record(latency, isOk(reply));
+                    }
+                }
+            } finally {
+                zContext.destroySocket(socket);
+                done.countDown();
+            }
+        }
+    }
+
+    private static class Stats {
+        private static final int BUCKETS = 32;
+        private long[] latencies = new long[1024];
+        private int count;
+        private final long[] histogram = new long[BUCKETS];
+        long errors;
+        long timeouts;
+
+        void record(long latencyNs, boolean ok) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNs;
+            /* log2 buckets of microseconds */
+            long us = Math.max(1, latencyNs / 1000);
+            histogram[Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us))]++;
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        void merge(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = other.latencies[i];
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] += other.histogram[i];
+            }
+            errors += other.errors;
+            timeouts += other.timeouts;
+        }
+
+        long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        void printHistogram() {
+            long max = 0;
+            for (long n : histogram) {
+                max = Math.max(max, n);
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                if (histogram[i] == 0) {
+                    continue;
+                }
+                int bar = (int) (40 * histogram[i] / max);
+                System.out.printf("  %8d - %8d us %9d %s%n", i == 0 ? 0 : 1L << i, (1L << (i + 1)) - 1, histogram[i],
+                        new String(new char[Math.max(1, bar)]).replace('\0', '#'));
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.opensync.app;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.io.File;
+import java.util.Arrays;
+
+/*
+ * REQ/REP round trip over each endpoint with the JeroMQ the APK ships, to
+ * tell whether a transport other than TCP loopback would be any faster.
+ * JeroMQ has no Unix domain sockets: ipc:// binds a TCP loopback port, which
+ * "socket file" in the output shows.
+ *
+ *   ./gradlew :app:transportBenchmark -PbenchmarkArgs="--size 4096"
+ *
+ * Options:
+ *   --endpoints LIST   endpoints to compare, comma separated
+ *                      (tcp://127.0.0.1:10199,ipc://<tmp>/opensync-bench.ipc)
+ *   --size N           request and reply bytes (512)
+ *   --iterations N     measured round trips per endpoint (100000)
+ */
+public class OpenSyncTransportBenchmark {
+    private static final int WARMUP = 20000;
+
+    public static void main(String[] args) throws Exception {
+        File ipcFile = new File(System.getProperty("java.io.tmpdir"), "opensync-bench.ipc");
+        String endpoints = "tcp://127.0.0.1:10199,ipc://" + ipcFile.getAbsolutePath();
+        int size = 512;
+        int iterations = 100000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--endpoints": endpoints = args[i + 1]; break;
+                case "--size": size = Integer.parseInt(args[i + 1]); break;
+                case "--iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-44s %6s %9s %9s %9s %12s%n",
+                "endpoint", "bytes", "p50(us)", "p90(us)", "p99(us)", "socket file");
+        /* Twice in turn, so neither endpoint gets the JIT warmup of the other */
+        for (int round = 0; round < 2; round++) {
+            for (String endpoint : endpoints.split(",")) {
+                run(endpoint.trim(), size, iterations);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(String endpoint, int size, int iterations) {
+        try (ZContext zContext = new ZContext()) {
+            ZMQ.Socket rep = zContext.createSocket(SocketType.REP);
+            rep.bind(endpoint);
+            Thread echo = new Thread(() -> {
+                byte[] msg;
+                try {
+                    while ((msg = rep.recv(0)) != null) {
+                        rep.send(msg, 0);
+                    }
+                } catch (ZMQException e) {
+                    /* Context closed at the end of the run */
+                }
+            }, "OpenSyncTransportEcho");
+            echo.setDaemon(true);
+            echo.start();
+
+            ZMQ.Socket req = zContext.createSocket(SocketType.REQ);
+            req.connect(endpoint);
+            byte[] msg = new byte[size];
+            for (int i = 0; i < WARMUP; i++) {
+                req.send(msg, 0);
+                req.recv(0);
+            }
+
+            long[] rtt = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                req.send(msg, 0);
+                req.recv(0);
+                rtt[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(rtt);
+
+            String socketFile = endpoint.startsWith("ipc://")
+                    ? (new File(endpoint.substring("ipc://".length())).exists() ? "yes" : "no") : "-";
+            System.out.printf("%-44s %6d %9.1f %9.1f %9.1f %12s%n", endpoint, size,
+                    rtt[iterations / 2] / 1e3, rtt[iterations * 9 / 10] / 1e3, rtt[iterations * 99 / 100] / 1e3,
+                    socketFile);
+        } catch (RuntimeException e) {
+            System.out.printf("%-44s failed: %s%n", endpoint, e);
+        }
+    }
+}
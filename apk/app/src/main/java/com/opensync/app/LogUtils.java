@@ -15,10 +15,16 @@ import java.util.zip.*;
 import org.apache.commons.compress.archivers.tar.*;
 
 
+/*
+ * One log pull per instance: the upload token and location are per call.
+ * The capture directory and the archive are shared on disk, so log pulls of
+ * concurrent IPC workers and jobs run one at a time.
+ */
 public class LogUtils {
     private static final String TAG = "OpenSync LogUtils";
+    private static final Object LOGPULL_LOCK = new Object();
 
-    private static Context mContext;
+    private Context mContext;
 
     private Map<String, String[]> linuxCmds;  // fileName, Commands
 
@@ -28,16 +34,16 @@ public class LogUtils {
     private static final long MAX_LOGPULL_SIZE = 20 * 1024 * 1024;  // 20 MB
     private static final long MAX_FILE_SIZE = 1 * 1024 * 1024;
 
-    private static String caFilePath;
-    private static String cacheLogDir;
-    private static String cacheDir;
+    private String caFilePath;
+    private String cacheLogDir;
+    private String cacheDir;
 
-    private static String uploadToken;
-    private static String uploadLocation;
+    private String uploadToken;
+    private String uploadLocation;
 
-    private static String AppFilesDir;
-    private static String installPrefix;
-    private static String targetPathScript;
+    private String AppFilesDir;
+    private String installPrefix;
+    private String targetPathScript;
 
     private static final List<String> linuxFiles = List.of(
                 "/proc/stat",
@@ -68,7 +74,7 @@ public class LogUtils {
         return uploadLocation;
     }
 
-    public static String getDestPath() {
+    public String getDestPath() {
         return cacheLogDir;
     }
 
@@ -143,19 +149,36 @@ public class LogUtils {
     }
 
     public void doLogpull() {
-
-        // Collect information
-        boolean captureSuccess = captureLogs();
-        if (captureSuccess == false) {
-            Log.e(TAG, "Failed to get logs, doLogpull() failed ");
-            return;
+        synchronized (LOGPULL_LOCK) {
+            doLogpullLocked();
         }
+    }
 
-        // Tar files
-        tarFiles();
+    private void doLogpullLocked() {
+        try {
+            // Collect information
+            boolean captureSuccess = captureLogs();
+            if (captureSuccess == false) {
+                Log.e(TAG, "Failed to get logs, doLogpull() failed ");
+                return;
+            }
 
-        // Upload file to AWS
-        uploadTarGzFile();
+            OpenSyncJob.reportProgress(50);
+            OpenSyncDeadline.check();
+
+            // Tar files
+            tarFiles();
+            OpenSyncJob.reportProgress(70);
+            OpenSyncDeadline.check();
+
+            // Upload file to AWS
+            uploadTarGzFile();
+            OpenSyncJob.reportProgress(90);
+        } catch (OpenSyncDeadline.ExpiredException e) {
+            Log.w(TAG, "Requester gave up, abort log pull");
+            deleteArchiveLogs();
+            throw e;
+        }
 
         // Delete tar file
         deleteArchiveLogs();
@@ -235,6 +258,7 @@ public class LogUtils {
 
 
             for (String key : linuxCmds.keySet()) {
+                OpenSyncDeadline.check();
                 String[] cmd = linuxCmds.get(key);
                 String outputFileName = cacheLogDir + "/" + key;
 
@@ -274,7 +298,7 @@ public class LogUtils {
         return ret;
     }
 
-    public static boolean tarFiles() {
+    public boolean tarFiles() {
         File tarFile = new File(cacheLogDir);
         try (FileOutputStream fos = new FileOutputStream(cacheDir + "/" + uploadToken);
                     BufferedOutputStream bos = new BufferedOutputStream(fos);
@@ -361,7 +385,7 @@ public class LogUtils {
     }
 
     // Upload
-    private static void uploadTarGzFile() {
+    private void uploadTarGzFile() {
         try {
             Path filePath = Paths.get(cacheDir +"/" + uploadToken);
             byte[] fileBytes = Files.readAllBytes(filePath);
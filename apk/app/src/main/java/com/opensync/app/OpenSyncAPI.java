@@ -9,46 +9,69 @@ import org.json.JSONException;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class OpenSyncAPI {
     private static final String TAG = "OpenSync API";
+    private static final byte[] JSON_PARSE_ERROR =
+            "{\"errCode\":\"500\",\"errMsg\":\"JSON Parsing Error:\"}".getBytes(StandardCharsets.UTF_8);
     private Map<String, Consumer<JSONObject>> apiHandlers;
+    /* APIs replying a single {"buff": value}, written straight into the reply buffer */
+    private Map<String, Supplier<String>> buffHandlers;
+    /* Identical requests within these windows share one computation, see OpenSyncSingleFlight */
+    static final long STREAMING_FRESH_MS = 200;
+    private static final long APP_USAGE_FRESH_MS = 1000;
+    /* Default bounds of one osandroid_event_replay reply */
+    private static final int REPLAY_MAX_EVENTS = 256;
+    private static final int REPLAY_MAX_BYTES = 48 * 1024;
+    private final OpenSyncIPCRequest request = new OpenSyncIPCRequest();
     private Context context;
     private OpenSyncPlatformAPI openSyncPlatformAPI;
     private OpenSyncTargetAPI openSyncTargetAPI;
     private OpenSyncStreaming openSyncStreaming;
     private OpenSyncAPPUsage openSyncAPPUsage;
     private OpenSyncBLEService openSyncBLEService;
+    private OpenSyncJobManager openSyncJobManager;
+    private OpenSyncBatch openSyncBatch;
 
     public OpenSyncAPI(Context context) {
+        this(context, new OpenSyncBLEService(context));
+    }
+
+    /* BLE advertising state belongs to the device, so it is shared across IPC workers */
+    public OpenSyncAPI(Context context, OpenSyncBLEService openSyncBLEService) {
         this.context = context;
         openSyncPlatformAPI = new OpenSyncPlatformAPI(context);
         openSyncTargetAPI = new OpenSyncTargetAPI(context);
         openSyncStreaming = new OpenSyncStreaming(context);
         openSyncAPPUsage = new OpenSyncAPPUsage(context);
-        openSyncBLEService = new OpenSyncBLEService(context);
+        this.openSyncBLEService = openSyncBLEService;
+        openSyncJobManager = OpenSyncJobManager.getInstance(context);
+        openSyncBatch = OpenSyncBatch.getInstance(context, openSyncBLEService);
 
         apiHandlers = new HashMap<>();
-
-        apiHandlers.put("osp_unit_serial_get", this::ospUnitSerialGet);
-        apiHandlers.put("osp_unit_id_get", this::ospUnitIdGet);
-        apiHandlers.put("osp_unit_model_get", this::ospUnitModelGet);
-        apiHandlers.put("osp_unit_sku_get", this::ospUnitSkuGet);
-        apiHandlers.put("osp_unit_hw_revision_get", this::ospUnitHwRevisionGet);
-        apiHandlers.put("osp_unit_platform_version_get", this::ospUnitPlatformVersionGet);
-        apiHandlers.put("osp_unit_sw_version_get", this::ospUnitSwVersionGet);
-        apiHandlers.put("osp_unit_vendor_name_get", this::ospUnitVendorNameGet);
-        apiHandlers.put("osp_unit_vendor_part_get", this::ospUnitVendorPartGet);
-        apiHandlers.put("osp_unit_manufacturer_get", this::ospUnitManufacturerGet);
-        apiHandlers.put("osp_unit_factory_get", this::ospUnitFactoryGet);
-        apiHandlers.put("osp_unit_mfg_date_get", this::ospUnitMfgDateGet);
-        apiHandlers.put("osp_unit_dhcpc_hostname_get", this::ospUnitDhcpcHostnameGet);
+        buffHandlers = new HashMap<>();
+
+        buffHandlers.put("osp_unit_serial_get", openSyncPlatformAPI::UnitSerialGet);
+        buffHandlers.put("osp_unit_id_get", openSyncPlatformAPI::UnitIdGet);
+        buffHandlers.put("osp_unit_model_get", openSyncPlatformAPI::UnitModelGet);
+        buffHandlers.put("osp_unit_sku_get", openSyncPlatformAPI::UnitSkuGet);
+        buffHandlers.put("osp_unit_hw_revision_get", openSyncPlatformAPI::UnitHwRevisionGet);
+        buffHandlers.put("osp_unit_platform_version_get", openSyncPlatformAPI::UnitPlatformVersionGet);
+        buffHandlers.put("osp_unit_sw_version_get", openSyncPlatformAPI::UnitSwVersionGet);
+        buffHandlers.put("osp_unit_vendor_name_get", openSyncPlatformAPI::UnitVendorNameGet);
+        buffHandlers.put("osp_unit_vendor_part_get", openSyncPlatformAPI::UnitVendorPartGet);
+        buffHandlers.put("osp_unit_manufacturer_get", openSyncPlatformAPI::UnitManufacturerGet);
+        buffHandlers.put("osp_unit_factory_get", openSyncPlatformAPI::UnitFactoryGet);
+        buffHandlers.put("osp_unit_mfg_date_get", openSyncPlatformAPI::UnitMfgDateGet);
+        buffHandlers.put("osp_unit_dhcpc_hostname_get", openSyncPlatformAPI::UnitDhcpcHostnameGet);
 
         apiHandlers.put("target_vif_config_set2", this::targetVifConfigSet2);
         apiHandlers.put("osandroid_streaming_get", this::osandroidStreamingGet);
@@ -58,104 +81,258 @@ public class OpenSyncAPI {
         apiHandlers.put("osp_ble_set_advertising_data", this::ospBleSetAdvertisingData);
 
         apiHandlers.put("target_log_pull_ext", this::targetLogPullExt);
-    }
 
-    public String Dispatch(String jsonContent) {
-        try {
-            JSONObject jsonObject = new JSONObject(jsonContent);
-            String apiName = jsonObject.getString("api");
+        apiHandlers.put("osandroid_job_status_get", this::osandroidJobStatusGet);
+        apiHandlers.put(OpenSyncMetrics.API, this::osandroidMetricsGet);
+        apiHandlers.put("osandroid_event_replay", this::osandroidEventReplay);
+        apiHandlers.put(OpenSyncStreamingSummary.API, this::osandroidStreamingSummaryGet);
+    }
 
-            Consumer<JSONObject> handler = apiHandlers.get(apiName);
+    /* Dispatch a raw request frame, the reply is written into out. Not thread-safe, one OpenSyncAPI per worker */
+    public void Dispatch(byte[] msg, int length, OpenSyncIPCBuffer out) {
+        Dispatch(msg, length, out, System.nanoTime());
+    }
 
-            if (handler != null) {
-                handler.accept(jsonObject);
-            } else {
-                generateErrorResponse(jsonObject, "400", "Unknown API: " + apiName);
+    /*
+     * A request's timeout_ms counts from arrivalNanos. Without one the request
+     * keeps the deadline of the calling thread, e.g. the calls of a batch.
+     *
+     * The reply is CBOR when the request is CBOR or carries "encoding":"cbor",
+     * JSON otherwise. A request which cannot be decoded is answered in JSON.
+     */
+    public void Dispatch(byte[] msg, int length, OpenSyncIPCBuffer out, long arrivalNanos) {
+        out.reset();
+        boolean cbor = OpenSyncCbor.isCbor(msg, length);
+        boolean parsed;
+        if (cbor) {
+            try {
+                parsed = request.parse(OpenSyncCbor.decodeObject(msg, length));
+            } catch (JSONException e) {
+                Log.e(TAG, "CBOR Parsing Error: " + e.getMessage());
+                out.append(JSON_PARSE_ERROR);
+                return;
             }
-
-            Log.d(TAG, "OUT: " + jsonObject.toString());
-            return jsonObject.toString();
-        } catch (JSONException e) {
-            Log.e(TAG, "JSON Parsing Error: " + e.getMessage());
-            return "{\"errCode\":\"500\",\"errMsg\":\"JSON Parsing Error:\"}";
+        } else {
+            parsed = request.parse(msg, length);
         }
+        dispatchParsed(parsed, cbor, out, arrivalNanos);
     }
 
-    private void OspPackResponseJson(JSONObject jsonObject, String string) {
-        JSONObject paramsObject = new JSONObject();
-        try {
-            paramsObject.put("buff", string);
-        } catch (JSONException e) {
-            generateErrorResponse(jsonObject, "500", "JSON Pack: " + "Error adding argv: " + e.getMessage());
-        }
-
-        JSONArray paramsArray = new JSONArray();
-        paramsArray.put(paramsObject);
+    /* A request decoded already, e.g. a call of a batch */
+    public void Dispatch(JSONObject msg, OpenSyncIPCBuffer out, long arrivalNanos) {
+        out.reset();
+        dispatchParsed(request.parse(msg), false, out, arrivalNanos);
+    }
 
-        try {
-            jsonObject.put("params", paramsArray);
-        } catch (JSONException e) {
-            generateErrorResponse(jsonObject, "500", "JSON Pack" + "Error putting params into main JSON: " + e.getMessage());
+    private void dispatchParsed(boolean parsed, boolean cbor, OpenSyncIPCBuffer out, long arrivalNanos) {
+        String apiName = parsed ? request.getString("api") : null;
+        if (apiName == null) {
+            Log.e(TAG, "JSON Parsing Error: " + request);
+            out.append(JSON_PARSE_ERROR);
+            return;
         }
-
+        cbor |= OpenSyncCbor.ENCODING_CBOR.equals(request.getString("encoding"));
+
+        boolean known = buffHandlers.containsKey(apiName) || apiHandlers.containsKey(apiName) ||
+                OpenSyncBatch.API.equals(apiName);
+        OpenSyncMetrics.ApiMetrics metrics = OpenSyncMetrics.begin(known ? apiName : OpenSyncMetrics.OTHER_API);
+        long startNanos = System.nanoTime();
+        String errCode = "500";
+        long timeoutMs = request.getLong("timeout_ms", 0);
+        long callerDeadline = OpenSyncDeadline.get();
+        long deadline = timeoutMs > 0 ? OpenSyncDeadline.fromTimeout(arrivalNanos, timeoutMs) : callerDeadline;
+        OpenSyncDeadline.set(deadline);
         try {
-            jsonObject.put("errCode", "200");
-            jsonObject.put("errMsg", "");
-        } catch (JSONException e) {
-            generateErrorResponse(jsonObject, "500", "JSON Pack" + "Error adding error code: " + e.getMessage());
+            if (OpenSyncDeadline.isExpired(deadline)) {
+                errCode = "504";
+                packErrorResponse(out, apiName, errCode, "Deadline expired before dispatch", cbor);
+            } else {
+                errCode = dispatchRequest(apiName, out, cbor);
+            }
+        } catch (OpenSyncDeadline.ExpiredException e) {
+            Log.w(TAG, apiName + " aborted, deadline expired");
+            errCode = "504";
+            out.reset();
+            packErrorResponse(out, apiName, errCode, "Deadline expired", cbor);
+        } catch (RuntimeException e) {
+            /* A broken handler answers 500, it must not take the worker thread down with it */
+            Log.e(TAG, apiName + " failed", e);
+            errCode = "500";
+            out.reset();
+            packErrorResponse(out, apiName, errCode, "Internal error: " + e, cbor);
+        } finally {
+            OpenSyncDeadline.set(callerDeadline);
+            OpenSyncMetrics.end(metrics, startNanos, errCode);
         }
-    }
 
-    private void ospUnitSerialGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitSerialGet());
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "OUT: " + out);
+        }
     }
 
-    private void ospUnitIdGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitIdGet());
+    /* Returns the errCode of the reply, null when the handler did not set one */
+    private String dispatchRequest(String apiName, OpenSyncIPCBuffer out, boolean cbor) {
+        Supplier<String> buffHandler = buffHandlers.get(apiName);
+        if (buffHandler != null) {
+            byte[] cached = OpenSyncResponseCache.get(apiName, cbor);
+            if (cached != null) {
+                out.append(cached);
+            } else {
+                long gen = OpenSyncResponseCache.generation();
+                String value = buffHandler.get();
+                if (cbor) {
+                    packBuffResponseCbor(out, apiName, value);
+                } else {
+                    packBuffResponse(out, apiName, value);
+                }
+                /* Never cache a lookup that failed, e.g. no MAC while Wi-Fi is off */
+                if (value != null && OpenSyncResponseCache.isCacheable(apiName)) {
+                    OpenSyncResponseCache.put(apiName, cbor, out.toByteArray(), gen);
+                }
+            }
+            return "200";
+        } else if (OpenSyncBatch.API.equals(apiName)) {
+            try {
+                return openSyncBatch.run(request, out, cbor);
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON Parsing Error: " + e.getMessage());
+                out.reset();
+                out.append(JSON_PARSE_ERROR);
+                return "500";
+            }
+        } else {
+            try {
+                /* Handlers only get the api and its params, the rest of the request is never decoded */
+                JSONObject jsonObject = new JSONObject();
+                jsonObject.put("api", apiName);
+                Object params = request.getJSONValue("params");
+                if (params != null) {
+                    jsonObject.put("params", params);
+                }
+                dispatchJson(jsonObject, apiName, request.getBoolean("async", false));
+                if (cbor) {
+                    OpenSyncCbor.encode(jsonObject, out);
+                } else {
+                    out.appendUtf8(jsonObject.toString());
+                }
+                return jsonObject.optString("errCode", null);
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON Parsing Error: " + e.getMessage());
+                out.reset();
+                out.append(JSON_PARSE_ERROR);
+                return "500";
+            }
+        }
     }
 
-    private void ospUnitModelGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitModelGet());
+    public String Dispatch(String jsonContent) {
+        byte[] msg = jsonContent.getBytes(StandardCharsets.UTF_8);
+        OpenSyncIPCBuffer out = new OpenSyncIPCBuffer();
+        Dispatch(msg, msg.length, out);
+        return out.toString();
     }
 
-    private void ospUnitSkuGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitSkuGet());
-    }
+    private void dispatchJson(JSONObject jsonObject, String apiName, boolean async) throws JSONException {
+        Consumer<JSONObject> handler = apiHandlers.get(apiName);
 
-    private void ospUnitHwRevisionGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitHwRevisionGet());
+        if (handler != null && async && openSyncJobManager.isAsyncCapable(apiName)) {
+            submitJob(jsonObject, apiName);
+        } else if (handler != null) {
+            handler.accept(jsonObject);
+        } else {
+            generateErrorResponse(jsonObject, "400", "Unknown API: " + apiName);
+        }
     }
 
-    private void ospUnitPlatformVersionGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitPlatformVersionGet());
+    /* {"api":"<api>","params":[{"buff":"<value>"}],"errCode":"200","errMsg":""} */
+    private void packBuffResponse(OpenSyncIPCBuffer out, String apiName, String value) {
+        out.appendAscii("{\"api\":").appendJsonString(apiName);
+        out.appendAscii(",\"params\":[{");
+        if (value != null) {
+            out.appendAscii("\"buff\":").appendJsonString(value);
+        }
+        out.appendAscii("}],\"errCode\":\"200\",\"errMsg\":\"\"}");
     }
 
-    private void ospUnitSwVersionGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitSwVersionGet());
+    /* The same reply in CBOR */
+    private static void packBuffResponseCbor(OpenSyncIPCBuffer out, String apiName, String value) {
+        OpenSyncCbor.writeMapHead(out, 4);
+        OpenSyncCbor.writeString(out, "api");
+        OpenSyncCbor.writeString(out, apiName);
+        OpenSyncCbor.writeString(out, "params");
+        OpenSyncCbor.writeArrayHead(out, 1);
+        OpenSyncCbor.writeMapHead(out, value != null ? 1 : 0);
+        if (value != null) {
+            OpenSyncCbor.writeString(out, "buff");
+            OpenSyncCbor.writeString(out, value);
+        }
+        OpenSyncCbor.writeString(out, "errCode");
+        OpenSyncCbor.writeString(out, "200");
+        OpenSyncCbor.writeString(out, "errMsg");
+        OpenSyncCbor.writeString(out, "");
     }
 
-    private void ospUnitVendorNameGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitVendorNameGet());
-    }
+    /*
+     * {"api":"osandroid_event_replay","params":{"since_seq":N,"epoch":E,"topics":["osandroid_sta",...]}}
+     * Optional "max_events" and "max_bytes" bound the reply, "more" asks for another call
+     * continuing at "next_since_seq".
+     */
+    private void osandroidEventReplay(JSONObject jsonObject) {
+        try {
+            OpenSyncPublisher publisher = OpenSyncPublisher.getInstance();
+            if (publisher == null) {
+                generateErrorResponse(jsonObject, "503", "Event journal not available");
+                return;
+            }
 
-    private void ospUnitVendorPartGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitVendorPartGet());
-    }
+            JSONObject params = jsonObject.optJSONObject("params");
+            if (params == null) {
+                params = new JSONObject();
+            }
+            JSONArray topicArray = params.optJSONArray("topics");
+            String[] topics = new String[topicArray != null ? topicArray.length() : 0];
+            for (int i = 0; i < topics.length; i++) {
+                topics[i] = topicArray.getString(i);
+            }
 
-    private void ospUnitManufacturerGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitManufacturerGet());
-    }
+            JSONObject replay = publisher.getJournal().replay(
+                    params.optLong("since_seq", 0),
+                    params.optLong("epoch", 0),
+                    topics,
+                    Math.max(1, params.optInt("max_events", REPLAY_MAX_EVENTS)),
+                    Math.max(1, params.optInt("max_bytes", REPLAY_MAX_BYTES)));
 
-    private void ospUnitFactoryGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitFactoryGet());
+            JSONArray paramsArray = new JSONArray();
+            paramsArray.put(new JSONObject().put("replay", replay));
+            jsonObject.put("params", paramsArray);
+            jsonObject.put("errCode", "200");
+            jsonObject.put("errMsg", "");
+        } catch (JSONException e) {
+            Log.e(TAG, "osandroidEventReplay" + e.getMessage());
+            generateErrorResponse(jsonObject, "400", "JSON parsing error");
+        }
     }
 
-    private void ospUnitMfgDateGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitMfgDateGet());
+    /* {"api":"<api>","errCode":"<code>","errMsg":"<msg>"} */
+    public static void packErrorResponse(OpenSyncIPCBuffer out, String apiName, String errCode, String errMsg) {
+        out.appendAscii("{\"api\":").appendJsonString(apiName);
+        out.appendAscii(",\"errCode\":").appendJsonString(errCode);
+        out.appendAscii(",\"errMsg\":").appendJsonString(errMsg).append('}');
     }
 
-    private void ospUnitDhcpcHostnameGet(JSONObject jsonObject) {
-        OspPackResponseJson(jsonObject, openSyncPlatformAPI.UnitDhcpcHostnameGet());
+    public static void packErrorResponse(OpenSyncIPCBuffer out, String apiName, String errCode, String errMsg,
+                                         boolean cbor) {
+        if (!cbor) {
+            packErrorResponse(out, apiName, errCode, errMsg);
+            return;
+        }
+        OpenSyncCbor.writeMapHead(out, 3);
+        OpenSyncCbor.writeString(out, "api");
+        OpenSyncCbor.writeString(out, apiName);
+        OpenSyncCbor.writeString(out, "errCode");
+        OpenSyncCbor.writeString(out, errCode);
+        OpenSyncCbor.writeString(out, "errMsg");
+        OpenSyncCbor.writeString(out, errMsg);
     }
 
     private void targetVifConfigSet2(JSONObject jsonObject) {
@@ -168,7 +345,7 @@ public class OpenSyncAPI {
 
     private void osandroidStreamingGet(JSONObject jsonObject) {
         try {
-            openSyncStreaming.osandroidStreamingGet(jsonObject);
+            OpenSyncSingleFlight.apply(jsonObject, STREAMING_FRESH_MS, openSyncStreaming::osandroidStreamingGet);
         } catch (JSONException e) {
             Log.e(TAG, "osandroidStreamingGet" + e.getMessage());
         }
@@ -176,7 +353,7 @@ public class OpenSyncAPI {
 
     private void osandroidAppUsageGet(JSONObject jsonObject) {
         try {
-            openSyncAPPUsage.osandroidAppUsageGet(jsonObject);
+            OpenSyncSingleFlight.apply(jsonObject, APP_USAGE_FRESH_MS, openSyncAPPUsage::osandroidAppUsageGet);
         } catch (JSONException e) {
             Log.e(TAG, "osandroidAppUsageGet" + e.getMessage());
         }
@@ -184,7 +361,9 @@ public class OpenSyncAPI {
 
     private void ospBleSetAdvertisingParams(JSONObject jsonObject) {
         try {
-            openSyncBLEService.enableBLEAdvertising(jsonObject);
+            synchronized (openSyncBLEService) {
+                openSyncBLEService.enableBLEAdvertising(jsonObject);
+            }
         } catch (JSONException e) {
             Log.e(TAG, "ospBleSetAdvertisingParams" + e.getMessage());
         }
@@ -192,7 +371,9 @@ public class OpenSyncAPI {
 
     private void ospBleSetAdvertisingData(JSONObject jsonObject) {
         try {
-            openSyncBLEService.setBLEAdvertisingData(jsonObject);
+            synchronized (openSyncBLEService) {
+                openSyncBLEService.setBLEAdvertisingData(jsonObject);
+            }
         } catch (JSONException e) {
             Log.e(TAG, "ospBleSetAdvertisingData" + e.getMessage());
         }
@@ -206,6 +387,71 @@ public class OpenSyncAPI {
         }
     }
 
+    private void submitJob(JSONObject jsonObject, String apiName) throws JSONException {
+        OpenSyncJob job = openSyncJobManager.submit(apiName, jsonObject);
+        if (job == null) {
+            generateErrorResponse(jsonObject, "503", "Job queue is full: " + apiName);
+            return;
+        }
+
+        jsonObject.remove("params");
+        jsonObject.put("job_id", job.getId());
+        jsonObject.put("errCode", "202");
+        jsonObject.put("errMsg", "");
+    }
+
+    private void osandroidJobStatusGet(JSONObject jsonObject) {
+        try {
+            String jobId = jsonObject.getJSONObject("params").getString("job_id");
+            OpenSyncJob job = openSyncJobManager.get(jobId);
+            if (job == null) {
+                generateErrorResponse(jsonObject, "404", "Unknown job: " + jobId);
+                return;
+            }
+
+            JSONArray paramsArray = new JSONArray();
+            paramsArray.put(new JSONObject().put("job", job.toJson()));
+            jsonObject.put("params", paramsArray);
+            jsonObject.put("errCode", "200");
+            jsonObject.put("errMsg", "");
+        } catch (JSONException e) {
+            Log.e(TAG, "osandroidJobStatusGet" + e.getMessage());
+            generateErrorResponse(jsonObject, "400", "JSON parsing error");
+        }
+    }
+
+    private void osandroidMetricsGet(JSONObject jsonObject) {
+        try {
+            JSONArray paramsArray = new JSONArray();
+            paramsArray.put(new JSONObject().put("metrics", OpenSyncMetrics.toJson()));
+            jsonObject.put("params", paramsArray);
+            jsonObject.put("errCode", "200");
+            jsonObject.put("errMsg", "");
+        } catch (JSONException e) {
+            Log.e(TAG, "osandroidMetricsGet" + e.getMessage());
+            generateErrorResponse(jsonObject, "500", "Build metrics failed");
+        }
+    }
+
+    private void osandroidStreamingSummaryGet(JSONObject jsonObject) {
+        OpenSyncStreamingSampler sampler = OpenSyncStreamingSampler.getInstance();
+        if (sampler == null) {
+            generateErrorResponse(jsonObject, "503", "Streaming sampler is disabled");
+            return;
+        }
+
+        try {
+            JSONArray paramsArray = new JSONArray();
+            paramsArray.put(new JSONObject().put("summary", sampler.getSummary().toJsonAndReset()));
+            jsonObject.put("params", paramsArray);
+            jsonObject.put("errCode", "200");
+            jsonObject.put("errMsg", "");
+        } catch (JSONException e) {
+            Log.e(TAG, "osandroidStreamingSummaryGet" + e.getMessage());
+            generateErrorResponse(jsonObject, "500", "Build streaming summary failed");
+        }
+    }
+
     private void generateErrorResponse(JSONObject jsonObject, String errCode, String errMsg) {
         try {
             jsonObject.put("errCode", errCode);
@@ -21,12 +21,13 @@ import android.net.ConnectivityManager;
 
 public class OpenSyncAPPUsage {
     private static final String TAG = "OpenSync APPUsage";
-    private static PackageManager packageManager;
-    private static Context context;
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss");
-    private static ArrayList<AppQOEInfo> appQoeList;
-    private static long AppStartTime;
-    private static long AppEndTime;
+    /* Per instance, every IPC worker owns its own OpenSyncAPPUsage */
+    private PackageManager packageManager;
+    private Context context;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss");
+    private ArrayList<AppQOEInfo> appQoeList;
+    private long AppStartTime;
+    private long AppEndTime;
 
     public static class AppQOEInfo {
         private String packageName;
@@ -125,7 +126,7 @@ public class OpenSyncAPPUsage {
         }
     }
 
-    private static void setTime(int timePeriod) {
+    private void setTime(int timePeriod) {
         AppStartTime = System.currentTimeMillis() - timePeriod * 1000;
         AppEndTime = System.currentTimeMillis();
     }
@@ -148,17 +149,11 @@ public class OpenSyncAPPUsage {
         }
     }
 
-    public static ArrayList<AppQOEInfo> getAppQOEInfo() {
+    public ArrayList<AppQOEInfo> getAppQOEInfo() {
         ArrayList<AppQOEInfo> list = new ArrayList<>();
         Log.d(TAG, "Range start:   " + dateFormat.format(AppStartTime)+ " AppStartTime = " + AppStartTime);
         Log.d(TAG, "Range end:" + dateFormat.format(AppEndTime) + "AppEndTime= " + AppEndTime);
 
-        packageManager = context.getPackageManager();
-        if (packageManager == null) {
-            Log.e(TAG, "packageManager is empty");
-            return null;
-        }
-
         UsageStatsManager usageStatsManager = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
         NetworkStatsManager networkStatsManager = (NetworkStatsManager) context.getSystemService(Context.NETWORK_STATS_SERVICE);
 
@@ -180,7 +175,14 @@ public class OpenSyncAPPUsage {
             return list;
         }
 
+        packageManager = context.getPackageManager();
+        if (packageManager == null) {
+            Log.e(TAG, "packageManager is empty");
+            return null;
+        }
+
         for (Map.Entry<String, UsageStats> entry : statsMap.entrySet()) {
+            OpenSyncDeadline.check();
             UsageStats stats = entry.getValue();
             if (stats != null && stats.getTotalTimeInForeground() > 0) {
                 try {
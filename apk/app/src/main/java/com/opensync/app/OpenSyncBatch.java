@@ -0,0 +1,189 @@
+package com.opensync.app;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs the sub-calls of an osandroid_batch request concurrently, so a batch
+ * takes about as long as its slowest member instead of the sum of all.
+ */
+public class OpenSyncBatch {
+    private static final String TAG = "OpenSync Batch";
+    public static final String API = "osandroid_batch";
+    private static final long DEFAULT_TIMEOUT_MS = 5000;
+    private static final int MAX_CALLS = 32;
+    private static final int QUEUE_SIZE = 64;
+
+    private static OpenSyncBatch instance;
+
+    private final ThreadPoolExecutor executor;
+    /*
+     * Every executor thread owns its own handler state, like the IPC workers.
+     * The threads are started by the first batches and then kept, so the
+     * handler state is built once per thread and not after every idle period.
+     */
+    private final ThreadLocal<OpenSyncAPI> threadAPI;
+    private final ThreadLocal<OpenSyncIPCBuffer> threadBuffer = ThreadLocal.withInitial(OpenSyncIPCBuffer::new);
+
+    public static synchronized OpenSyncBatch getInstance(Context context, OpenSyncBLEService openSyncBLEService) {
+        if (instance == null) {
+            instance = new OpenSyncBatch(context.getApplicationContext(), openSyncBLEService);
+        }
+        return instance;
+    }
+
+    private OpenSyncBatch(Context context, OpenSyncBLEService openSyncBLEService) {
+        int threads = Math.max(1, BuildConfig.OSYNC_IPC_WORKERS);
+        AtomicInteger threadId = new AtomicInteger();
+
+        threadAPI = ThreadLocal.withInitial(() -> new OpenSyncAPI(context, openSyncBLEService));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                r -> new Thread(r, "OpenSyncBatchWorker-" + threadId.getAndIncrement()));
+    }
+
+    /*
+     * {"api":"osandroid_batch","timeout_ms":N,"params":[{"api":...}, ...]}, returns the batch errCode.
+     * The calls answer in the encoding of the batch, their replies are copied into it as they are.
+     */
+    public String run(OpenSyncIPCRequest request, OpenSyncIPCBuffer out, boolean cbor) throws JSONException {
+        Object params = request.getJSONValue("params");
+        if (!(params instanceof JSONArray)) {
+            packError(out, API, "400", "Batch params must be an array", cbor);
+            return "400";
+        }
+
+        JSONArray calls = (JSONArray) params;
+        if (calls.length() > MAX_CALLS) {
+            packError(out, API, "400", "Too many calls in batch: " + calls.length(), cbor);
+            return "400";
+        }
+
+        long timeoutMs = request.getLong("timeout_ms", DEFAULT_TIMEOUT_MS);
+        if (timeoutMs <= 0) {
+            packError(out, API, "400", "Batch timeout_ms must be positive: " + timeoutMs, cbor);
+            return "400";
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        long requestDeadline = OpenSyncDeadline.get();
+
+        int count = calls.length();
+        String[] apiNames = new String[count];
+        String[] errCodes = new String[count];
+        String[] errMsgs = new String[count];
+        List<Future<byte[]>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JSONObject call = calls.optJSONObject(i);
+            apiNames[i] = (call != null) ? call.optString("api", null) : null;
+            futures.add(null);
+
+            if (apiNames[i] == null) {
+                errCodes[i] = "400";
+                errMsgs[i] = "Missing api";
+                continue;
+            }
+            if (API.equals(apiNames[i])) {
+                errCodes[i] = "400";
+                errMsgs[i] = "Nested batch is not allowed";
+                continue;
+            }
+
+            if (cbor) {
+                call.put("encoding", OpenSyncCbor.ENCODING_CBOR);
+            } else {
+                call.remove("encoding");
+            }
+            try {
+                futures.set(i, executor.submit(() -> {
+                    /* Calls inherit the deadline of the batch request */
+                    OpenSyncIPCBuffer buffer = threadBuffer.get();
+                    OpenSyncDeadline.set(requestDeadline);
+                    try {
+                        threadAPI.get().Dispatch(call, buffer, System.nanoTime());
+                    } finally {
+                        OpenSyncDeadline.clear();
+                    }
+                    return buffer.toByteArray();
+                }));
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Batch executor is full, reject " + apiNames[i]);
+                errCodes[i] = "503";
+                errMsgs[i] = "Batch queue is full";
+            }
+        }
+
+        out.reset();
+        if (cbor) {
+            OpenSyncCbor.writeMapHead(out, 4);
+            OpenSyncCbor.writeString(out, "api");
+            OpenSyncCbor.writeString(out, API);
+            OpenSyncCbor.writeString(out, "params");
+            OpenSyncCbor.writeArrayHead(out, count);
+        } else {
+            out.appendAscii("{\"api\":\"" + API + "\",\"params\":[");
+        }
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && !cbor) {
+                out.append(',');
+            }
+
+            Future<byte[]> future = futures.get(i);
+            if (future == null) {
+                packSubError(out, apiNames[i], errCodes[i], errMsgs[i], cbor);
+                continue;
+            }
+
+            try {
+                long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                out.append(future.get(remaining, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                Log.w(TAG, "Batch call " + apiNames[i] + " timed out after " + timeoutMs + " ms");
+                packSubError(out, apiNames[i], "504", "Timeout", cbor);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Batch call " + apiNames[i] + " failed", e.getCause());
+                packSubError(out, apiNames[i], "500", String.valueOf(e.getCause()), cbor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                packSubError(out, apiNames[i], "500", "Interrupted", cbor);
+            }
+        }
+        if (cbor) {
+            OpenSyncCbor.writeString(out, "errCode");
+            OpenSyncCbor.writeString(out, "200");
+            OpenSyncCbor.writeString(out, "errMsg");
+            OpenSyncCbor.writeString(out, "");
+        } else {
+            out.appendAscii("],\"errCode\":\"200\",\"errMsg\":\"\"}");
+        }
+        return "200";
+    }
+
+    private static void packSubError(OpenSyncIPCBuffer out, String apiName, String errCode, String errMsg,
+                                     boolean cbor) {
+        OpenSyncAPI.packErrorResponse(out, apiName, errCode, errMsg, cbor);
+    }
+
+    private static void packError(OpenSyncIPCBuffer out, String apiName, String errCode, String errMsg,
+                                  boolean cbor) {
+        out.reset();
+        packSubError(out, apiName, errCode, errMsg, cbor);
+    }
+}
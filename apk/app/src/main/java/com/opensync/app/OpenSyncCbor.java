@@ -0,0 +1,318 @@
+package com.opensync.app;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/*
+ * CBOR (RFC 8949) encoding of the JSON documents exchanged over IPC, an
+ * alternative to JSON text negotiated per request.
+ *
+ * Only what org.json can hold is supported: maps with text keys, arrays, text,
+ * integers, doubles, booleans and null. Integral numbers are written as CBOR
+ * integers. Byte strings and tags are not produced, tags are skipped on decode.
+ */
+public class OpenSyncCbor {
+    public static final String ENCODING_JSON = "json";
+    public static final String ENCODING_CBOR = "cbor";
+
+    private static final int MAJOR_UINT = 0;
+    private static final int MAJOR_NEGINT = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+    private static final int MAX_DEPTH = 64;
+
+    /* A JSON document starts with '{' or whitespace, a CBOR request with a map head */
+    public static boolean isCbor(byte[] data, int length) {
+        return length > 0 && ((data[0] & 0xff) >> 5) == MAJOR_MAP;
+    }
+
+    public static void encode(Object value, OpenSyncIPCBuffer out) throws JSONException {
+        encode(value, out, 0);
+    }
+
+    private static void encode(Object value, OpenSyncIPCBuffer out, int depth) throws JSONException {
+        if (depth > MAX_DEPTH) {
+            throw new JSONException("CBOR nesting too deep");
+        }
+
+        if (value == null || value == JSONObject.NULL) {
+            out.appendByte(0xf6);
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.appendByte((Boolean) value ? 0xf5 : 0xf4);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(out, ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            long l = (long) d;
+            if (l == d && l != Long.MIN_VALUE && l != Long.MAX_VALUE) {
+                writeLong(out, l);
+            } else {
+                long bits = Double.doubleToLongBits(d);
+                out.appendByte(0xfb);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.appendByte((int) (bits >>> shift));
+                }
+            }
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writeHead(out, MAJOR_MAP, object.length());
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                encode(key, out, depth + 1);
+                encode(object.opt(key), out, depth + 1);
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writeHead(out, MAJOR_ARRAY, array.length());
+            for (int i = 0; i < array.length(); i++) {
+                encode(array.opt(i), out, depth + 1);
+            }
+        } else {
+            encode(value.toString(), out, depth);
+        }
+    }
+
+    /* Heads of a map or an array whose members the caller writes, e.g. replies encoded already */
+    public static void writeMapHead(OpenSyncIPCBuffer out, int size) {
+        writeHead(out, MAJOR_MAP, size);
+    }
+
+    public static void writeArrayHead(OpenSyncIPCBuffer out, int size) {
+        writeHead(out, MAJOR_ARRAY, size);
+    }
+
+    /* Text string, null for a null value */
+    public static void writeString(OpenSyncIPCBuffer out, String s) {
+        if (s == null) {
+            out.appendByte(0xf6);
+            return;
+        }
+        writeHead(out, MAJOR_TEXT, OpenSyncIPCBuffer.utf8Length(s));
+        out.appendUtf8(s);
+    }
+
+    private static void writeLong(OpenSyncIPCBuffer out, long value) {
+        if (value >= 0) {
+            writeHead(out, MAJOR_UINT, value);
+        } else {
+            writeHead(out, MAJOR_NEGINT, -1 - value);
+        }
+    }
+
+    private static void writeHead(OpenSyncIPCBuffer out, int major, long arg) {
+        int type = major << 5;
+        if (arg < 24) {
+            out.appendByte(type | (int) arg);
+        } else if (arg < 0x100) {
+            out.appendByte(type | 24).appendByte((int) arg);
+        } else if (arg < 0x10000) {
+            out.appendByte(type | 25).appendByte((int) (arg >> 8)).appendByte((int) arg);
+        } else if (arg < 0x100000000L) {
+            out.appendByte(type | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.appendByte((int) (arg >>> shift));
+            }
+        } else {
+            out.appendByte(type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.appendByte((int) (arg >>> shift));
+            }
+        }
+    }
+
+    /* Decode a CBOR map into a JSONObject */
+    public static JSONObject decodeObject(byte[] data, int length) throws JSONException {
+        Decoder decoder = new Decoder(data, length);
+        Object value = decoder.read(0);
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("CBOR document is not a map");
+        }
+        if (decoder.pos != length) {
+            throw new JSONException("Trailing bytes after CBOR document");
+        }
+        return (JSONObject) value;
+    }
+
+    private static class Decoder {
+        private final byte[] data;
+        private final int length;
+        private int pos;
+
+        Decoder(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        private int readByte() throws JSONException {
+            if (pos >= length) {
+                throw new JSONException("Truncated CBOR document");
+            }
+            return data[pos++] & 0xff;
+        }
+
+        private long readArg(int info) throws JSONException {
+            if (info < 24) {
+                return info;
+            }
+            int bytes;
+            switch (info) {
+                case 24: bytes = 1; break;
+                case 25: bytes = 2; break;
+                case 26: bytes = 4; break;
+                case 27: bytes = 8; break;
+                default: throw new JSONException("Invalid CBOR argument " + info);
+            }
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        private int readLength(int info) throws JSONException {
+            long n = readArg(info);
+            if (n < 0 || n > length - pos) {
+                throw new JSONException("Invalid CBOR length " + n);
+            }
+            return (int) n;
+        }
+
+        private boolean atBreak() throws JSONException {
+            if (pos >= length) {
+                throw new JSONException("Truncated CBOR document");
+            }
+            if ((data[pos] & 0xff) == BREAK) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        Object read(int depth) throws JSONException {
+            if (depth > MAX_DEPTH) {
+                throw new JSONException("CBOR nesting too deep");
+            }
+
+            int head = readByte();
+            int major = head >> 5;
+            int info = head & 0x1f;
+
+            switch (major) {
+                case MAJOR_UINT: {
+                    long n = readArg(info);
+                    if (n < 0) {
+                        throw new JSONException("CBOR integer out of range");
+                    }
+                    return n;
+                }
+                case MAJOR_NEGINT: {
+                    long n = readArg(info);
+                    if (n < 0) {
+                        throw new JSONException("CBOR integer out of range");
+                    }
+                    return -1 - n;
+                }
+                case MAJOR_BYTES:
+                    throw new JSONException("CBOR byte strings are not supported");
+                case MAJOR_TEXT: {
+                    if (info == INDEFINITE) {
+                        StringBuilder sb = new StringBuilder();
+                        while (!atBreak()) {
+                            Object chunk = read(depth + 1);
+                            if (!(chunk instanceof String)) {
+                                throw new JSONException("Invalid CBOR text chunk");
+                            }
+                            sb.append((String) chunk);
+                        }
+                        return sb.toString();
+                    }
+                    int n = readLength(info);
+                    String s = new String(data, pos, n, StandardCharsets.UTF_8);
+                    pos += n;
+                    return s;
+                }
+                case MAJOR_ARRAY: {
+                    JSONArray array = new JSONArray();
+                    if (info == INDEFINITE) {
+                        while (!atBreak()) {
+                            array.put(read(depth + 1));
+                        }
+                    } else {
+                        int n = readLength(info);
+                        for (int i = 0; i < n; i++) {
+                            array.put(read(depth + 1));
+                        }
+                    }
+                    return array;
+                }
+                case MAJOR_MAP: {
+                    JSONObject object = new JSONObject();
+                    if (info == INDEFINITE) {
+                        while (!atBreak()) {
+                            readEntry(object, depth);
+                        }
+                    } else {
+                        int n = readLength(info);
+                        for (int i = 0; i < n; i++) {
+                            readEntry(object, depth);
+                        }
+                    }
+                    return object;
+                }
+                case MAJOR_TAG:
+                    readArg(info);
+                    return read(depth + 1);
+                default:
+                    return readSimple(info);
+            }
+        }
+
+        private void readEntry(JSONObject object, int depth) throws JSONException {
+            Object key = read(depth + 1);
+            if (!(key instanceof String)) {
+                throw new JSONException("CBOR map keys must be text");
+            }
+            object.put((String) key, read(depth + 1));
+        }
+
+        private Object readSimple(int info) throws JSONException {
+            switch (info) {
+                case 20: return Boolean.FALSE;
+                case 21: return Boolean.TRUE;
+                case 22:
+                case 23: return JSONObject.NULL;
+                case 25: return halfToDouble((int) readArg(info));
+                case 26: return (double) Float.intBitsToFloat((int) readArg(info));
+                case 27: return Double.longBitsToDouble(readArg(info));
+                default: throw new JSONException("Unsupported CBOR simple value " + info);
+            }
+        }
+
+        private static double halfToDouble(int half) {
+            int exp = (half >> 10) & 0x1f;
+            int mant = half & 0x3ff;
+            double value;
+            if (exp == 0) {
+                value = mant * Math.pow(2, -24);
+            } else if (exp != 31) {
+                value = (mant + 1024) * Math.pow(2, exp - 25);
+            } else {
+                value = mant == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            }
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+    }
+}
@@ -112,13 +112,6 @@ public class OpenSyncConnectDevice {
     public OpenSyncConnectDevice(Context context) {
         this.context = context;
         this.deviceInfoMap = new HashMap<String, List<DeviceInfo>>();
-
-        try {
-            // delay 2 seconds to avoid ANDROIDM up late
-            Thread.sleep(2000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
     }
 
     public void BLEDeviceUpdate(JSONObject json, BluetoothDevice device) {
@@ -0,0 +1,55 @@
+package com.opensync.app;
+
+/*
+ * Deadline of the IPC request served by the current thread, derived from the
+ * request's timeout_ms when it reached OpenSyncIPCServer. Handlers doing
+ * long work call check() between steps, so nobody computes an answer the
+ * requester already gave up on.
+ */
+public class OpenSyncDeadline {
+    public static final long NONE = Long.MAX_VALUE;
+
+    private static final ThreadLocal<long[]> current = ThreadLocal.withInitial(() -> new long[] { NONE });
+
+    public static class ExpiredException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ExpiredException() {
+            super("Deadline expired");
+        }
+    }
+
+    /* System.nanoTime() based deadline, NONE when the request has no timeout */
+    public static long fromTimeout(long arrivalNanos, long timeoutMs) {
+        if (timeoutMs <= 0) {
+            return NONE;
+        }
+        return arrivalNanos + timeoutMs * 1_000_000L;
+    }
+
+    public static void set(long deadlineNanos) {
+        current.get()[0] = deadlineNanos;
+    }
+
+    public static void clear() {
+        current.get()[0] = NONE;
+    }
+
+    public static long get() {
+        return current.get()[0];
+    }
+
+    public static boolean isExpired(long deadlineNanos) {
+        return deadlineNanos != NONE && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    public static boolean expired() {
+        return isExpired(get());
+    }
+
+    public static void check() {
+        if (expired()) {
+            throw new ExpiredException();
+        }
+    }
+}
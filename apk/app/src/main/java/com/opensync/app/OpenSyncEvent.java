@@ -0,0 +1,28 @@
+package com.opensync.app;
+
+import org.json.JSONObject;
+
+/* Event posted on the EventBus to be published by OpenSyncService on the PUB socket */
+public class OpenSyncEvent {
+    private final String api;
+    private final JSONObject json;
+    /* When the event was raised, see OpenSyncTimestamps */
+    private final long srcNanos = OpenSyncTimestamps.now();
+
+    public OpenSyncEvent(String api, JSONObject json) {
+        this.api = api;
+        this.json = json;
+    }
+
+    public String getApi() {
+        return api;
+    }
+
+    public JSONObject getJson() {
+        return json;
+    }
+
+    public long getSrcNanos() {
+        return srcNanos;
+    }
+}
@@ -0,0 +1,151 @@
+package com.opensync.app;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Trailing debounce for bursty peripheral broadcasts. Broadcasts with the same
+ * key (the physical interface, or interface and MAC for Bluetooth) that arrive
+ * within the window are merged into one rescan, run on the debouncer thread
+ * with the latest scan posted. The result is published only when it differs
+ * from the last state published for that key, so a cable wiggle that ends
+ * where it started publishes nothing.
+ */
+public class OpenSyncEventDebouncer {
+    private static final String TAG = "OpenSync EventDebouncer";
+    /* A steady stream of broadcasts is still flushed after this many windows */
+    private static final int MAX_WINDOWS = 4;
+
+    private static volatile OpenSyncEventDebouncer instance;
+
+    public interface Scan {
+        /* Returns the event to publish, or null when there is nothing to report */
+        JSONObject scan() throws JSONException;
+    }
+
+    private final OpenSyncPublisher publisher;
+    private final long windowMs;
+    private final HandlerThread thread;
+    private final Handler handler;
+    /* Only touched on the debouncer thread */
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Map<String, String> lastState = new HashMap<>();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+
+    private class Pending implements Runnable {
+        final String key;
+        final long firstMs;
+        /* First broadcast of the window, the source of the published event */
+        final long srcNanos;
+        Scan scan;
+        int count;
+
+        Pending(String key, long firstMs, long srcNanos) {
+            this.key = key;
+            this.firstMs = firstMs;
+            this.srcNanos = srcNanos;
+        }
+
+        @Override
+        public void run() {
+            pending.remove(key);
+            scans.increment();
+            Log.d(TAG, key + ": " + count + " broadcast(s) merged into one scan");
+
+            JSONObject json;
+            try {
+                json = scan.scan();
+            } catch (JSONException e) {
+                Log.e(TAG, key + ": build JSON failed");
+                return;
+            }
+            if (json == null) {
+                return;
+            }
+
+            String state = json.toString();
+            if (state.equals(lastState.get(key))) {
+                unchanged.increment();
+                Log.d(TAG, key + ": state unchanged, not published");
+                return;
+            }
+            lastState.put(key, state);
+            published.increment();
+            publisher.publish(json, srcNanos);
+        }
+    }
+
+    public OpenSyncEventDebouncer(OpenSyncPublisher publisher, long windowMs) {
+        this.publisher = publisher;
+        this.windowMs = Math.max(0, windowMs);
+        thread = new HandlerThread("OpenSyncEventDebouncer");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        instance = this;
+    }
+
+    public static OpenSyncEventDebouncer getInstance() {
+        return instance;
+    }
+
+    /*
+     * Called on the broadcast thread. The scan replaces any scan pending for
+     * the key and restarts its window. A null scan only extends a pending
+     * window, for broadcasts that carry no state of their own.
+     */
+    public void post(String key, Scan scan) {
+        broadcasts.increment();
+        long srcNanos = OpenSyncTimestamps.now();
+        handler.post(() -> schedule(key, scan, srcNanos));
+    }
+
+    private void schedule(String key, Scan scan, long srcNanos) {
+        long now = SystemClock.uptimeMillis();
+        Pending p = pending.get(key);
+        if (p == null) {
+            if (scan == null) {
+                return;
+            }
+            p = new Pending(key, now, srcNanos);
+            pending.put(key, p);
+        } else {
+            handler.removeCallbacks(p);
+        }
+        if (scan != null) {
+            p.scan = scan;
+        }
+        p.count++;
+
+        long delay = Math.min(windowMs, p.firstMs + windowMs * MAX_WINDOWS - now);
+        handler.postDelayed(p, Math.max(0, delay));
+    }
+
+    public void stop() {
+        thread.quitSafely();
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("window_ms", windowMs);
+        json.put("broadcasts", broadcasts.sum());
+        json.put("scans", scans.sum());
+        json.put("published", published.sum());
+        json.put("unchanged", unchanged.sum());
+        return json;
+    }
+}
@@ -0,0 +1,341 @@
+package com.opensync.app;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Bounded ring of the last published events, memory-mapped in the cache dir
+ * so it survives a restart of the app. Every event gets the next sequence
+ * number and the journal epoch before it is sent. A subscriber that missed
+ * events asks for everything after the last sequence it saw. The epoch only
+ * changes when the journal is recreated, which also restarts the sequence.
+ *
+ * Layout: a header, then records [int length][long seq][short api length]
+ * [api bytes][JSON bytes] written back to back in the data area and wrapping
+ * around its end, length being the one of the JSON. The api lets a replay
+ * filter by topic without parsing the JSON. head and tail are absolute byte
+ * offsets, the oldest records are evicted to make room.
+ *
+ * The header is stored after the record data, a kill in between can leave
+ * records the header does not describe. Every record is checked before it
+ * is used, the journal is truncated at the first bad one and gets a new
+ * epoch, so subscribers replay from scratch.
+ */
+public class OpenSyncEventJournal {
+    private static final String TAG = "OpenSync EventJournal";
+    public static final String FILE_NAME = "opensync_events.journal";
+    public static final int DEFAULT_SIZE = 256 * 1024;
+    private static final int MAGIC = 0x4f534a32;  // "OSJ2"
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER_SIZE = 14;
+    private static final int MAX_API_LENGTH = 255;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_CAPACITY = 4;
+    private static final int OFF_EPOCH = 8;
+    private static final int OFF_HEAD = 16;
+    private static final int OFF_TAIL = 24;
+    private static final int OFF_FIRST_SEQ = 32;
+    private static final int OFF_NEXT_SEQ = 40;
+
+    private final ByteBuffer map;
+    private final int capacity;
+    private final byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+    private final ByteBuffer recordHeaderBuf = ByteBuffer.wrap(recordHeader);
+    private final byte[] apiBytes = new byte[MAX_API_LENGTH];
+    private long epoch;
+    private long head;
+    private long tail;
+    /* Sequence of the record at tail, equals nextSeq when the journal is empty */
+    private long firstSeq;
+    private long nextSeq;
+
+    public OpenSyncEventJournal(File dir, int size) {
+        ByteBuffer buffer = null;
+        if (dir != null) {
+            File file = new File(dir, FILE_NAME);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                /* The mapping stays valid after the channel is closed */
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot map " + file + ", journal is not persistent: " + e.getMessage());
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        map = buffer;
+        capacity = size - HEADER_SIZE;
+        if (!load()) {
+            reset();
+        }
+        Log.i(TAG, "Epoch " + epoch + ", first seq " + firstSeq + ", next seq " + nextSeq);
+    }
+
+    private boolean load() {
+        if (map.getInt(OFF_MAGIC) != MAGIC || map.getInt(OFF_CAPACITY) != capacity) {
+            return false;
+        }
+        epoch = map.getLong(OFF_EPOCH);
+        head = map.getLong(OFF_HEAD);
+        tail = map.getLong(OFF_TAIL);
+        firstSeq = map.getLong(OFF_FIRST_SEQ);
+        nextSeq = map.getLong(OFF_NEXT_SEQ);
+        if (tail < 0 || head < tail || head - tail > capacity || firstSeq < 1 || nextSeq < firstSeq) {
+            Log.w(TAG, "Journal header is inconsistent, starting a new epoch");
+            return false;
+        }
+
+        long seq = firstSeq - 1;
+        for (long pos = tail; pos < head; pos = next(pos)) {
+            if (!isValid(pos) || readSeq(pos) <= seq || readSeq(pos) >= nextSeq) {
+                truncate(pos);
+                break;
+            }
+            seq = readSeq(pos);
+        }
+        return true;
+    }
+
+    private void reset() {
+        epoch = System.currentTimeMillis();
+        head = 0;
+        tail = 0;
+        firstSeq = 1;
+        nextSeq = 1;
+        map.putInt(OFF_MAGIC, MAGIC);
+        map.putInt(OFF_CAPACITY, capacity);
+        map.putLong(OFF_EPOCH, epoch);
+        storeHeader();
+    }
+
+    /* Drop the record at pos and everything after it */
+    private void truncate(long pos) {
+        Log.w(TAG, "Bad record at " + pos + ", " + (head - pos) + " bytes dropped, starting a new epoch");
+        head = pos;
+        firstSeq = readSeq(tail);
+        epoch = Math.max(System.currentTimeMillis(), epoch + 1);
+        map.putLong(OFF_EPOCH, epoch);
+        storeHeader();
+    }
+
+    /* The record at pos has a sane size and ends before head */
+    private boolean isValid(long pos) {
+        if (head - pos < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        int length = readInt(pos);
+        int apiLength = readApiLength(pos);
+        return length >= 0 && length <= capacity / 2 && apiLength >= 0 && apiLength <= MAX_API_LENGTH
+                && pos + RECORD_HEADER_SIZE + apiLength + length <= head;
+    }
+
+    private long next(long pos) {
+        return pos + RECORD_HEADER_SIZE + readApiLength(pos) + readInt(pos);
+    }
+
+    private void storeHeader() {
+        map.putLong(OFF_HEAD, head);
+        map.putLong(OFF_TAIL, tail);
+        map.putLong(OFF_FIRST_SEQ, firstSeq);
+        map.putLong(OFF_NEXT_SEQ, nextSeq);
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /* Assign the next sequence number, adds "seq" and "epoch" to the event */
+    public synchronized long stamp(JSONObject json) throws JSONException {
+        long seq = nextSeq++;
+        json.put("seq", seq);
+        json.put("epoch", epoch);
+        return seq;
+    }
+
+    /* Store the serialized JSON of a stamped event of api, the oldest events make room */
+    public synchronized void append(long seq, String api, byte[] bytes, int offset, int length) {
+        byte[] apiUtf8 = api.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + apiUtf8.length + length;
+        if (apiUtf8.length > MAX_API_LENGTH || recordSize > capacity / 2) {
+            Log.w(TAG, "Event " + seq + " of " + length + " bytes is too big for the journal");
+            return;
+        }
+
+        while (head - tail + recordSize > capacity) {
+            if (!isValid(tail)) {
+                truncate(tail);
+                break;
+            }
+            tail = next(tail);
+        }
+
+        recordHeaderBuf.putInt(0, length);
+        recordHeaderBuf.putLong(4, seq);
+        recordHeaderBuf.putShort(12, (short) apiUtf8.length);
+        write(head, recordHeader, 0, RECORD_HEADER_SIZE);
+        write(head + RECORD_HEADER_SIZE, apiUtf8, 0, apiUtf8.length);
+        write(head + RECORD_HEADER_SIZE + apiUtf8.length, bytes, offset, length);
+        head += recordSize;
+        firstSeq = readSeq(tail);
+        nextSeq = Math.max(nextSeq, seq + 1);
+        storeHeader();
+    }
+
+    /*
+     * Events with a sequence after sinceSeq, oldest first, limited to maxEvents
+     * and about maxBytes of JSON. Topics are api name prefixes, empty means all.
+     * A different epoch than the caller's restarts the replay from the first
+     * event, truncated tells the caller events were already evicted. An event
+     * bigger than maxBytes on its own could never be replayed, it is skipped
+     * and counted in "skipped" instead of blocking every later replay. Only
+     * the matching records are copied under the lock, they are parsed after.
+     */
+    public JSONObject replay(long sinceSeq, long callerEpoch, String[] topics,
+                             int maxEvents, int maxBytes) throws JSONException {
+        List<byte[]> records = new ArrayList<>();
+        boolean epochChanged;
+        boolean more = false;
+        long lastSeq;
+        long currentEpoch;
+        long first;
+        long last;
+        int skipped = 0;
+
+        synchronized (this) {
+            epochChanged = callerEpoch != 0 && callerEpoch != epoch;
+            if (epochChanged || sinceSeq >= nextSeq) {
+                sinceSeq = 0;
+            }
+
+            lastSeq = sinceSeq;
+            int bytes = 0;
+            for (long pos = tail; pos < head; pos = next(pos)) {
+                OpenSyncDeadline.check();
+                if (!isValid(pos)) {
+                    truncate(pos);
+                    break;
+                }
+                long seq = readSeq(pos);
+                if (seq <= sinceSeq) {
+                    continue;
+                }
+                int length = readInt(pos);
+                int apiLength = readApiLength(pos);
+                read(pos + RECORD_HEADER_SIZE, apiBytes, apiLength);
+                if (!matches(new String(apiBytes, 0, apiLength, StandardCharsets.UTF_8), topics)) {
+                    lastSeq = seq;
+                    continue;
+                }
+                if (length > maxBytes) {
+                    Log.w(TAG, "Event " + seq + " of " + length + " bytes is too big to replay, skipped");
+                    skipped++;
+                    lastSeq = seq;
+                    continue;
+                }
+                if (records.size() >= maxEvents || (bytes > 0 && bytes + length > maxBytes)) {
+                    more = true;
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                read(pos + RECORD_HEADER_SIZE + apiLength, record, length);
+                records.add(record);
+                bytes += length;
+                lastSeq = seq;
+            }
+
+            currentEpoch = epoch;
+            first = firstSeq;
+            last = nextSeq - 1;
+        }
+
+        JSONArray events = new JSONArray();
+        for (byte[] record : records) {
+            try {
+                events.put(new JSONObject(new String(record, StandardCharsets.UTF_8)));
+            } catch (JSONException e) {
+                Log.w(TAG, "Unreadable event of " + record.length + " bytes skipped: " + e.getMessage());
+                skipped++;
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("epoch", currentEpoch);
+        json.put("first_seq", first);
+        json.put("last_seq", last);
+        /* Where the next replay should continue, past events filtered out by topic */
+        json.put("next_since_seq", more ? lastSeq : last);
+        json.put("reset", epochChanged);
+        json.put("truncated", sinceSeq + 1 < first);
+        json.put("more", more);
+        json.put("skipped", skipped);
+        json.put("events", events);
+        return json;
+    }
+
+    private static boolean matches(String api, String[] topics) {
+        if (topics == null || topics.length == 0) {
+            return true;
+        }
+        for (String topic : topics) {
+            if (api.startsWith(topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int readInt(long pos) {
+        read(pos, recordHeader, 4);
+        return recordHeaderBuf.getInt(0);
+    }
+
+    private int readApiLength(long pos) {
+        read(pos + 12, recordHeader, 2);
+        return recordHeaderBuf.getShort(0) & 0xffff;
+    }
+
+    private long readSeq(long pos) {
+        if (pos >= head) {
+            return nextSeq;
+        }
+        read(pos + 4, recordHeader, 8);
+        return recordHeaderBuf.getLong(0);
+    }
+
+    private void write(long pos, byte[] src, int offset, int length) {
+        int at = (int) (pos % capacity);
+        int first = Math.min(length, capacity - at);
+        map.position(HEADER_SIZE + at);
+        map.put(src, offset, first);
+        if (first < length) {
+            map.position(HEADER_SIZE);
+            map.put(src, offset + first, length - first);
+        }
+    }
+
+    private void read(long pos, byte[] dst, int length) {
+        int at = (int) (pos % capacity);
+        int first = Math.min(length, capacity - at);
+        map.position(HEADER_SIZE + at);
+        map.get(dst, 0, first);
+        if (first < length) {
+            map.position(HEADER_SIZE);
+            map.get(dst, first, length - first);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.opensync.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Reusable byte buffer an IPC worker writes its replies into, so the reply
+ * goes to the socket without building intermediate Strings. Not thread-safe.
+ */
+public class OpenSyncIPCBuffer {
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    /* Do not keep a huge buffer around after an occasional big reply */
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int len = 0;
+
+    public void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[INITIAL_CAPACITY];
+        }
+        len = 0;
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int length() {
+        return len;
+    }
+
+    /* Only shrinks, e.g. to drop a trailing byte before appending more */
+    public void setLength(int length) {
+        if (length < 0 || length > len) {
+            throw new IndexOutOfBoundsException("length " + length + " of " + len);
+        }
+        len = length;
+    }
+
+    public OpenSyncIPCBuffer append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    public OpenSyncIPCBuffer append(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buf, len, length);
+        len += length;
+        return this;
+    }
+
+    public OpenSyncIPCBuffer appendByte(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+        return this;
+    }
+
+    public OpenSyncIPCBuffer append(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+        return this;
+    }
+
+    /* Only for literals known to be ASCII, e.g. JSON keys */
+    public OpenSyncIPCBuffer appendAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    public OpenSyncIPCBuffer appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return appendAscii(Long.toString(value));
+        }
+
+        ensure(20);
+        if (value < 0) {
+            buf[len++] = '-';
+            value = -value;
+        }
+
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        /* Digits were written backwards */
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+        return this;
+    }
+
+    /* Append UTF-8 encoded text as is, e.g. an already serialized JSON document */
+    public OpenSyncIPCBuffer appendUtf8(CharSequence s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buf[len++] = (byte) c;
+            } else {
+                i = appendNonAscii(s, i);
+            }
+        }
+        return this;
+    }
+
+    /* Number of bytes appendUtf8() writes for s */
+    public static int utf8Length(CharSequence s) {
+        int n = s.length();
+        int bytes = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /* Append a quoted and escaped JSON string, or null */
+    public OpenSyncIPCBuffer appendJsonString(CharSequence s) {
+        if (s == null) {
+            return appendAscii("null");
+        }
+
+        ensure(s.length() + 2);
+        buf[len++] = '"';
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                ensure(2);
+                buf[len++] = '\\';
+                buf[len++] = (byte) c;
+            } else if (c < 0x20) {
+                ensure(6);
+                buf[len++] = '\\';
+                buf[len++] = 'u';
+                buf[len++] = '0';
+                buf[len++] = '0';
+                buf[len++] = HEX[c >> 4];
+                buf[len++] = HEX[c & 0xf];
+            } else if (c < 0x80) {
+                ensure(1);
+                buf[len++] = (byte) c;
+            } else {
+                i = appendNonAscii(s, i);
+            }
+        }
+        ensure(1);
+        buf[len++] = '"';
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private int appendNonAscii(CharSequence s, int i) {
+        ensure(4);
+        char c = s.charAt(i);
+        if (c < 0x800) {
+            buf[len++] = (byte) (0xc0 | (c >> 6));
+            buf[len++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buf[len++] = (byte) (0xf0 | (cp >> 18));
+            buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[len++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            buf[len++] = '?';
+        } else {
+            buf[len++] = (byte) (0xe0 | (c >> 12));
+            buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[len++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+}
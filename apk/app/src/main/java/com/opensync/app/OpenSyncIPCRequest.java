@@ -0,0 +1,298 @@
+package com.opensync.app;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Streaming reader over a raw IPC request frame.
+ *
+ * One pass over the top-level object records where each member lives in the
+ * frame, nothing is decoded until a handler asks for it. A request already
+ * decoded, e.g. from CBOR, is read through the same getters. Instances are
+ * reused per worker and are not thread-safe.
+ */
+public class OpenSyncIPCRequest {
+    private static final int INITIAL_MEMBERS = 8;
+
+    private byte[] data;
+    private int length;
+    private int count;
+    private int[] keyStart = new int[INITIAL_MEMBERS];
+    private int[] keyEnd = new int[INITIAL_MEMBERS];
+    private int[] valueStart = new int[INITIAL_MEMBERS];
+    private int[] valueEnd = new int[INITIAL_MEMBERS];
+    /* Set instead of the frame for a decoded request */
+    private JSONObject object;
+
+    public boolean parse(JSONObject object) {
+        this.object = object;
+        this.data = null;
+        this.length = 0;
+        this.count = 0;
+        return true;
+    }
+
+    public boolean parse(byte[] data, int length) {
+        this.object = null;
+        this.data = data;
+        this.length = length;
+        this.count = 0;
+
+        int pos = skipSpace(0);
+        if (pos >= length || data[pos] != '{') {
+            return false;
+        }
+
+        pos = skipSpace(pos + 1);
+        if (pos < length && data[pos] == '}') {
+            return true;
+        }
+
+        while (pos < length) {
+            if (data[pos] != '"') {
+                return false;
+            }
+            int ks = pos + 1;
+            pos = skipString(pos);
+            if (pos < 0) {
+                return false;
+            }
+            int ke = pos - 1;
+
+            pos = skipSpace(pos);
+            if (pos >= length || data[pos] != ':') {
+                return false;
+            }
+            pos = skipSpace(pos + 1);
+
+            int vs = pos;
+            pos = skipValue(pos);
+            if (pos < 0) {
+                return false;
+            }
+            addMember(ks, ke, vs, pos);
+
+            pos = skipSpace(pos);
+            if (pos >= length) {
+                return false;
+            }
+            if (data[pos] == '}') {
+                return true;
+            }
+            if (data[pos] != ',') {
+                return false;
+            }
+            pos = skipSpace(pos + 1);
+        }
+        return false;
+    }
+
+    public boolean has(String key) {
+        if (object != null) {
+            return object.has(key);
+        }
+        return find(key) >= 0;
+    }
+
+    public String getString(String key) {
+        if (object != null) {
+            Object value = object.opt(key);
+            return value instanceof String ? (String) value : null;
+        }
+        int i = find(key);
+        if (i < 0 || data[valueStart[i]] != '"') {
+            return null;
+        }
+        return decodeString(valueStart[i] + 1, valueEnd[i] - 1);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        if (object != null) {
+            Object value = object.opt(key);
+            return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+        }
+        int i = find(key);
+        if (i < 0) {
+            return defaultValue;
+        }
+
+        int pos = valueStart[i];
+        int end = valueEnd[i];
+        boolean negative = false;
+        if (pos < end && data[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        if (pos >= end || data[pos] < '0' || data[pos] > '9') {
+            return defaultValue;
+        }
+
+        long value = 0;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            value = value * 10 + (data[pos++] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        if (object != null) {
+            Object value = object.opt(key);
+            return value instanceof Boolean ? (Boolean) value : defaultValue;
+        }
+        int i = find(key);
+        if (i < 0) {
+            return defaultValue;
+        }
+        if (data[valueStart[i]] == 't') {
+            return true;
+        }
+        if (data[valueStart[i]] == 'f') {
+            return false;
+        }
+        return defaultValue;
+    }
+
+    /* Materialize a single member, e.g. "params", for handlers working on org.json */
+    public Object getJSONValue(String key) throws JSONException {
+        if (object != null) {
+            return object.opt(key);
+        }
+        int i = find(key);
+        if (i < 0) {
+            return null;
+        }
+        return new JSONTokener(new String(data, valueStart[i], valueEnd[i] - valueStart[i], StandardCharsets.UTF_8))
+                .nextValue();
+    }
+
+    @Override
+    public String toString() {
+        if (object != null) {
+            return object.toString();
+        }
+        return new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int find(String key) {
+        int keyLength = key.length();
+        for (int i = 0; i < count; i++) {
+            if (keyEnd[i] - keyStart[i] != keyLength) {
+                continue;
+            }
+            int j = 0;
+            while (j < keyLength && data[keyStart[i] + j] == key.charAt(j)) {
+                j++;
+            }
+            if (j == keyLength) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addMember(int ks, int ke, int vs, int ve) {
+        if (count == keyStart.length) {
+            int size = count * 2;
+            keyStart = Arrays.copyOf(keyStart, size);
+            keyEnd = Arrays.copyOf(keyEnd, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            valueEnd = Arrays.copyOf(valueEnd, size);
+        }
+        keyStart[count] = ks;
+        keyEnd[count] = ke;
+        valueStart[count] = vs;
+        valueEnd[count] = ve;
+        count++;
+    }
+
+    private int skipSpace(int pos) {
+        while (pos < length && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\n' || data[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /* pos points to the opening quote, returns the position after the closing quote */
+    private int skipString(int pos) {
+        pos++;
+        while (pos < length) {
+            byte b = data[pos];
+            if (b == '\\') {
+                pos += 2;
+            } else if (b == '"') {
+                return pos + 1;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    private int skipValue(int pos) {
+        if (pos >= length) {
+            return -1;
+        }
+
+        byte b = data[pos];
+        if (b == '"') {
+            return skipString(pos);
+        }
+
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (pos < length) {
+                b = data[pos];
+                if (b == '"') {
+                    pos = skipString(pos);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return pos + 1;
+                    }
+                }
+                pos++;
+            }
+            return -1;
+        }
+
+        /* Literal: number, true, false or null */
+        int start = pos;
+        while (pos < length) {
+            b = data[pos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                break;
+            }
+            pos++;
+        }
+        return (pos > start) ? pos : -1;
+    }
+
+    private String decodeString(int start, int end) {
+        int pos = start;
+        while (pos < end && data[pos] != '\\') {
+            pos++;
+        }
+        if (pos == end) {
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        /* Escaped content is rare in requests, take the slow path */
+        try {
+            return new JSONObject("{\"v\":" + new String(data, start - 1, end - start + 2, StandardCharsets.UTF_8) + "}")
+                    .getString("v");
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
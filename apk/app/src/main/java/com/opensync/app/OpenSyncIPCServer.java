@@ -2,48 +2,263 @@ package com.opensync.app;
 
 import android.content.Context;
 
+import org.zeromq.SocketType;
 import org.zeromq.ZMQ;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQException;
 
-import android.os.Handler;
-import android.os.Message;
-import android.os.Bundle;
 import android.util.Log;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
 public class OpenSyncIPCServer implements Runnable {
     private static final String TAG = "OpenSync IPCServer";
+    private static final String FRONTEND_ADDR = "tcp://127.0.0.1:10086";
+    private static final String BACKEND_ADDR = "inproc://opensync-ipc-workers";
+    private static final byte[] WORKER_READY = { 0x01 };
     private final Context context;
-    OpenSyncAPI openSyncAPI;
+    private final int workerCount;
+    private final int maxPending;
+    private final OpenSyncBLEService openSyncBLEService;
+    private volatile String endpoint;
+
+    /* Request waiting for an idle worker */
+    private static class Pending {
+        final byte[] identity;
+        final byte[] msg;
+        final long arrivalNanos;
+
+        Pending(byte[] identity, byte[] msg, long arrivalNanos) {
+            this.identity = identity;
+            this.msg = msg;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
 
     public OpenSyncIPCServer(Context context) {
+        this(context, BuildConfig.OSYNC_IPC_WORKERS);
+    }
+
+    public OpenSyncIPCServer(Context context, int workerCount) {
+        this(context, workerCount, new OpenSyncBLEService(context));
+    }
+
+    /* The IPC benchmark runs without Bluetooth and passes a null BLE service */
+    OpenSyncIPCServer(Context context, int workerCount, OpenSyncBLEService openSyncBLEService) {
+        this(context, workerCount, BuildConfig.OSYNC_IPC_MAX_PENDING, openSyncBLEService);
+    }
+
+    OpenSyncIPCServer(Context context, int workerCount, int maxPending, OpenSyncBLEService openSyncBLEService) {
         this.context = context;
-        openSyncAPI = new OpenSyncAPI(context);
+        this.workerCount = Math.max(1, workerCount);
+        this.maxPending = Math.max(0, maxPending);
+        this.openSyncBLEService = openSyncBLEService;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
     }
 
     @Override
     public void run() {
-        ZMQ.Context zmqContext = ZMQ.context(1);
-        ZMQ.Socket socket = zmqContext.socket(ZMQ.ROUTER);
-        socket.bind("tcp://127.0.0.1:10086");
+        ZContext zContext = new ZContext();
+        List<Thread> workers = new ArrayList<>();
 
         try {
-            Log.i(TAG, "Start...");
-            while (!Thread.currentThread().isInterrupted()) {
-                String identity = socket.recvStr();
-                socket.sendMore(identity);
-                socket.recvStr();  // envelope delimiter
-                String msg = socket.recvStr();
-                socket.sendMore("");
+            /* Managers talk to the frontend ROUTER, idle workers are picked on the backend ROUTER */
+            ZMQ.Socket frontend = zContext.createSocket(SocketType.ROUTER);
+            frontend.bind(FRONTEND_ADDR);
+            endpoint = FRONTEND_ADDR;
 
-                Log.i(TAG, identity + " " + msg);
-                socket.send(openSyncAPI.Dispatch(msg), 0);
+            ZMQ.Socket backend = zContext.createSocket(SocketType.ROUTER);
+            backend.bind(BACKEND_ADDR);
+
+            for (int i = 0; i < workerCount; i++) {
+                Thread worker = new Thread(new Worker(zContext, i), "OpenSyncIPCWorker-" + i);
+                worker.start();
+                workers.add(worker);
             }
+
+            Log.i(TAG, "Start with " + workerCount + " workers, " + maxPending + " pending requests at most...");
+            new Broker(frontend, backend).run(zContext);
         } catch (ZMQException e) {
-            Log.e(TAG, "ZMQ Exception occurred with error code: " + e.getErrorCode(), e);
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) {
+                Log.e(TAG, "ZMQ Exception occurred with error code: " + e.getErrorCode(), e);
+            }
         } finally {
-            socket.close();
-            zmqContext.term();
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            zContext.close();
+        }
+    }
+
+    /*
+     * Hands each request to an idle worker, or queues it up to maxPending.
+     * Requests over the limit are answered 503 right away, queued requests
+     * whose timeout_ms passed before a worker got free are answered 504.
+     */
+    private class Broker {
+        private final ZMQ.Socket frontend;
+        private final ZMQ.Socket backend;
+        private final ArrayDeque<byte[]> idleWorkers = new ArrayDeque<>();
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final OpenSyncIPCRequest request = new OpenSyncIPCRequest();
+        private final OpenSyncIPCBuffer reply = new OpenSyncIPCBuffer();
+        private final byte[] scratch = new byte[8];
+        private long shed;
+
+        Broker(ZMQ.Socket frontend, ZMQ.Socket backend) {
+            this.frontend = frontend;
+            this.backend = backend;
+        }
+
+        void run(ZContext zContext) {
+            ZMQ.Poller poller = zContext.createPoller(2);
+            int frontendIndex = poller.register(frontend, ZMQ.Poller.POLLIN);
+            int backendIndex = poller.register(backend, ZMQ.Poller.POLLIN);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                if (poller.poll(-1) < 0) {
+                    break;
+                }
+                if (poller.pollin(backendIndex)) {
+                    onWorkerMessage();
+                }
+                if (poller.pollin(frontendIndex)) {
+                    onRequest();
+                }
+            }
+        }
+
+        private void onRequest() {
+            byte[] identity = frontend.recv(0);
+            frontend.recv(scratch, 0, scratch.length, 0);  // envelope delimiter
+            byte[] msg = frontend.recv(0);
+            long arrivalNanos = System.nanoTime();
+
+            if (pending.isEmpty() && !idleWorkers.isEmpty()) {
+                forward(idleWorkers.poll(), identity, msg, arrivalNanos);
+            } else if (pending.size() < maxPending) {
+                pending.add(new Pending(identity, msg, arrivalNanos));
+            } else {
+                if (shed++ == 0) {
+                    Log.w(TAG, "Pending queue is full (" + maxPending + "), shedding requests");
+                }
+                sendError(identity, msg, arrivalNanos, "503", "Server busy");
+            }
+        }
+
+        private void onWorkerMessage() {
+            byte[] worker = backend.recv(0);
+            byte[] identity = backend.recv(0);
+            if (backend.hasReceiveMore()) {
+                backend.recv(scratch, 0, scratch.length, 0);  // envelope delimiter
+                byte[] msg = backend.recv(0);
+
+                frontend.sendMore(identity);
+                frontend.sendMore(ZMQ.MESSAGE_SEPARATOR);
+                frontend.send(msg, 0);
+            }
+            /* Either WORKER_READY or a reply, the worker is idle again */
+            idleWorkers.add(worker);
+            if (shed > 0) {
+                Log.w(TAG, "Pending queue drains again, " + shed + " requests shed");
+                shed = 0;
+            }
+
+            while (!idleWorkers.isEmpty() && !pending.isEmpty()) {
+                Pending next = pending.poll();
+                long timeoutMs = request.parse(next.msg, next.msg.length) ? request.getLong("timeout_ms", 0) : 0;
+                if (OpenSyncDeadline.isExpired(OpenSyncDeadline.fromTimeout(next.arrivalNanos, timeoutMs))) {
+                    sendError(next.identity, next.msg, next.arrivalNanos, "504", "Deadline expired while queued");
+                } else {
+                    forward(idleWorkers.poll(), next.identity, next.msg, next.arrivalNanos);
+                }
+            }
+        }
+
+        private void forward(byte[] worker, byte[] identity, byte[] msg, long arrivalNanos) {
+            for (int i = 0; i < 8; i++) {
+                scratch[i] = (byte) (arrivalNanos >>> (56 - 8 * i));
+            }
+            backend.sendMore(worker);
+            backend.sendMore(identity);
+            backend.sendMore(ZMQ.MESSAGE_SEPARATOR);
+            backend.sendMore(msg);
+            backend.send(scratch, 0, scratch.length, 0);
+        }
+
+        private void sendError(byte[] identity, byte[] msg, long arrivalNanos, String errCode, String errMsg) {
+            String apiName = request.parse(msg, msg.length) ? request.getString("api") : null;
+            reply.reset();
+            OpenSyncAPI.packErrorResponse(reply, apiName, errCode, errMsg);
+            OpenSyncMetrics.end(OpenSyncMetrics.begin(OpenSyncMetrics.IPC_SERVER_API), arrivalNanos, errCode);
+
+            frontend.sendMore(identity);
+            frontend.sendMore(ZMQ.MESSAGE_SEPARATOR);
+            frontend.send(reply.array(), 0, reply.length(), 0);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final ZContext zContext;
+        private final int id;
+        private final OpenSyncAPI openSyncAPI;
+        private final OpenSyncIPCBuffer reply = new OpenSyncIPCBuffer();
+        private final byte[] scratch = new byte[8];
+
+        Worker(ZContext zContext, int id) {
+            this.zContext = zContext;
+            this.id = id;
+            /* Handler state is per worker, only the BLE service is shared */
+            openSyncAPI = new OpenSyncAPI(context, openSyncBLEService);
+        }
+
+        @Override
+        public void run() {
+            ZMQ.Socket socket = zContext.createSocket(SocketType.DEALER);
+            socket.connect(BACKEND_ADDR);
+
+            try {
+                socket.send(WORKER_READY, 0);
+                while (!Thread.currentThread().isInterrupted()) {
+                    byte[] identity = socket.recv(0);
+                    socket.recv(scratch, 0, scratch.length, 0);  // envelope delimiter
+                    byte[] msg = socket.recv(0);
+                    socket.recv(scratch, 0, scratch.length, 0);  // arrival time
+                    long arrivalNanos = 0;
+                    for (int i = 0; i < 8; i++) {
+                        arrivalNanos = (arrivalNanos << 8) | (scratch[i] & 0xff);
+                    }
+
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "#" + id + " " + new String(identity, ZMQ.CHARSET) + " " + new String(msg, ZMQ.CHARSET));
+                    }
+                    long startNanos = OpenSyncTimestamps.now();
+                    try {
+                        openSyncAPI.Dispatch(msg, msg.length, reply, arrivalNanos);
+                        OpenSyncTimestamps.appendToReply(reply, OpenSyncTimestamps.fromNanoTime(arrivalNanos),
+                                startNanos, OpenSyncTimestamps.now());
+                    } catch (RuntimeException e) {
+                        /* Dispatch answers handler failures itself, this keeps the worker for anything else */
+                        Log.e(TAG, "#" + id + " request failed", e);
+                        reply.reset();
+                        OpenSyncAPI.packErrorResponse(reply, null, "500", "Internal error");
+                    }
+
+                    /* Route the reply back to the requester by its identity */
+                    socket.sendMore(identity);
+                    socket.sendMore(ZMQ.MESSAGE_SEPARATOR);
+                    socket.send(reply.array(), 0, reply.length(), 0);
+                }
+            } catch (ZMQException e) {
+                if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) {
+                    Log.e(TAG, "#" + id + " ZMQ Exception occurred with error code: " + e.getErrorCode(), e);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,116 @@
+package com.opensync.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.greenrobot.eventbus.EventBus;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class OpenSyncJob {
+    private static final String TAG = "OpenSync Job";
+    public static final String EVENT_API = "osandroid_job_event";
+
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_FAILED = "failed";
+
+    /* Job executed by the current thread, used by handlers to report progress */
+    private static final ThreadLocal<OpenSyncJob> currentJob = new ThreadLocal<>();
+
+    private final String id;
+    private final String api;
+    private final JSONObject request;
+    private final long submittedAt;
+    private volatile long finishedAt = 0;
+    private volatile String state = STATE_QUEUED;
+    private volatile int progress = 0;
+    private volatile String errCode = "";
+    private volatile String errMsg = "";
+
+    public OpenSyncJob(String id, String api, JSONObject request) {
+        this.id = id;
+        this.api = api;
+        this.request = request;
+        this.submittedAt = SystemClock.elapsedRealtime();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getApi() {
+        return api;
+    }
+
+    public JSONObject getRequest() {
+        return request;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public boolean isFinished() {
+        return STATE_DONE.equals(state) || STATE_FAILED.equals(state);
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    void start() {
+        currentJob.set(this);
+        state = STATE_RUNNING;
+        publish();
+    }
+
+    void finish(String code, String msg) {
+        currentJob.remove();
+        errCode = (code != null) ? code : "500";
+        errMsg = (msg != null) ? msg : "";
+        progress = 100;
+        finishedAt = SystemClock.elapsedRealtime();
+        state = "200".equals(errCode) ? STATE_DONE : STATE_FAILED;
+        publish();
+    }
+
+    /* Report progress (0 ~ 100) of the job running on this thread, no-op outside of a job */
+    public static void reportProgress(int percent) {
+        OpenSyncJob job = currentJob.get();
+        if (job != null && percent > job.progress && percent < 100) {
+            job.progress = percent;
+            job.publish();
+        }
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject jobObject = new JSONObject();
+        jobObject.put("job_id", id);
+        jobObject.put("job_api", api);
+        jobObject.put("state", state);
+        jobObject.put("progress", progress);
+        long end = (finishedAt != 0) ? finishedAt : SystemClock.elapsedRealtime();
+        jobObject.put("elapsed_ms", end - submittedAt);
+        if (isFinished()) {
+            jobObject.put("errCode", errCode);
+            jobObject.put("errMsg", errMsg);
+        }
+        return jobObject;
+    }
+
+    private void publish() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("api", EVENT_API);
+            JSONArray params = new JSONArray();
+            params.put(new JSONObject().put("job", toJson()));
+            json.put("params", params);
+            EventBus.getDefault().post(new OpenSyncEvent(EVENT_API, json));
+        } catch (JSONException e) {
+            Log.e(TAG, "Build JSON failed: " + e.getMessage());
+        }
+    }
+}
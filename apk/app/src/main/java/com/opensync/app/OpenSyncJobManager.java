@@ -0,0 +1,127 @@
+package com.opensync.app;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs long IPC APIs in the background, so the REQ caller gets a job id
+ * right away instead of timing out on OSANDROID_IPC_RECV_TIMEOUT.
+ */
+public class OpenSyncJobManager {
+    private static final String TAG = "OpenSync JobManager";
+    private static final int MAX_JOBS = 32;
+    private static final long FINISHED_JOB_TTL_MS = 10 * 60 * 1000;
+
+    private static OpenSyncJobManager instance;
+
+    private final Map<String, OpenSyncJob> jobs = new ConcurrentHashMap<>();
+    private final Map<String, JobHandler> jobHandlers = new ConcurrentHashMap<>();
+    private final AtomicLong nextJobId = new AtomicLong(1);
+    /* One job at a time: log pull and Wi-Fi connect must not overlap with themselves */
+    private final ExecutorService executor;
+    private final OpenSyncTargetAPI openSyncTargetAPI;
+
+    private interface JobHandler {
+        void run(JSONObject jsonObject) throws JSONException;
+    }
+
+    public static synchronized OpenSyncJobManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new OpenSyncJobManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private OpenSyncJobManager(Context context) {
+        openSyncTargetAPI = new OpenSyncTargetAPI(context);
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "OpenSyncJobWorker"));
+
+        jobHandlers.put("target_log_pull_ext", openSyncTargetAPI::targetLogPullExt);
+        jobHandlers.put("target_vif_config_set2", openSyncTargetAPI::targetVifConfigSet2);
+    }
+
+    public boolean isAsyncCapable(String apiName) {
+        return jobHandlers.containsKey(apiName);
+    }
+
+    public OpenSyncJob submit(String apiName, JSONObject request) throws JSONException {
+        JobHandler handler = jobHandlers.get(apiName);
+        if (handler == null) {
+            return null;
+        }
+
+        expireJobs();
+        if (jobs.size() >= MAX_JOBS) {
+            Log.w(TAG, "Too many jobs, reject " + apiName);
+            return null;
+        }
+
+        /* The job works on its own copy, the caller keeps building its reply */
+        OpenSyncJob job = new OpenSyncJob(Long.toString(nextJobId.getAndIncrement()),
+                apiName, new JSONObject(request.toString()));
+        jobs.put(job.getId(), job);
+
+        try {
+            executor.execute(() -> runJob(job, handler));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            Log.e(TAG, "Submit " + apiName + " failed: " + e.getMessage());
+            return null;
+        }
+
+        Log.i(TAG, "Job " + job.getId() + " queued: " + apiName);
+        return job;
+    }
+
+    public OpenSyncJob get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    private void runJob(OpenSyncJob job, JobHandler handler) {
+        JSONObject jsonObject = job.getRequest();
+
+        job.start();
+        try {
+            handler.run(jsonObject);
+            job.finish(jsonObject.optString("errCode", "500"), jsonObject.optString("errMsg", ""));
+        } catch (Exception e) {
+            Log.e(TAG, "Job " + job.getId() + " " + job.getApi() + " failed", e);
+            job.finish("500", e.getMessage());
+        }
+        Log.i(TAG, "Job " + job.getId() + " " + job.getApi() + ": " + job.getState());
+    }
+
+    private void expireJobs() {
+        long now = SystemClock.elapsedRealtime();
+        OpenSyncJob oldest = null;
+        Iterator<OpenSyncJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            OpenSyncJob job = iterator.next();
+            if (!job.isFinished()) {
+                continue;
+            }
+            if ((now - job.getFinishedAt()) > FINISHED_JOB_TTL_MS) {
+                iterator.remove();
+            } else if (oldest == null || job.getFinishedAt() < oldest.getFinishedAt()) {
+                oldest = job;
+            }
+        }
+
+        /* Still full, make room by forgetting the oldest finished job */
+        if (jobs.size() >= MAX_JOBS && oldest != null) {
+            jobs.remove(oldest.getId());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.opensync.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.greenrobot.eventbus.EventBus;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Per-API call counts, errCode counts, in-flight gauge and latency histogram
+ * of OpenSyncAPI.Dispatch, shared by all IPC workers. Per event api, the
+ * source to enqueue and enqueue to send latencies of published events, see
+ * OpenSyncTimestamps.
+ *
+ * Recording only touches LongAdders, the snapshot is built on read. Latencies
+ * go to log2 buckets of microseconds, bucket i holds [2^i, 2^(i+1)) us.
+ */
+public class OpenSyncMetrics {
+    private static final String TAG = "OpenSync Metrics";
+    public static final String API = "osandroid_metrics_get";
+    public static final String EVENT_API = "osandroid_metrics_event";
+    /* Requests naming unknown APIs are counted together */
+    public static final String OTHER_API = "other";
+    /* Requests answered by OpenSyncIPCServer itself, e.g. shed with 503 */
+    public static final String IPC_SERVER_API = "ipc_server";
+    private static final int BUCKETS = 24;
+
+    private static final Map<String, ApiMetrics> apis = new ConcurrentHashMap<>();
+    private static final Map<String, EventMetrics> events = new ConcurrentHashMap<>();
+    private static final long startTime = SystemClock.elapsedRealtime();
+    private static Timer publishTimer;
+
+    private static class Histogram {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalUs = new LongAdder();
+        private final AtomicLong maxUs = new AtomicLong();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long us) {
+            us = Math.max(0, us);
+            count.increment();
+            totalUs.add(us);
+            buckets[Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, us)))].increment();
+
+            long max = maxUs.get();
+            while (us > max && !maxUs.compareAndSet(max, us)) {
+                max = maxUs.get();
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        /* Puts "latency_us" and "histogram_us" into json */
+        void toJson(JSONObject json) throws JSONException {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+
+            JSONObject latency = new JSONObject();
+            latency.put("avg", total > 0 ? totalUs.sum() / total : 0);
+            latency.put("max", maxUs.get());
+            latency.put("p50", percentile(counts, total, 50));
+            latency.put("p90", percentile(counts, total, 90));
+            latency.put("p99", percentile(counts, total, 99));
+
+            JSONArray histogramJson = new JSONArray();
+            int last = BUCKETS - 1;
+            while (last > 0 && counts[last] == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                histogramJson.put(counts[i]);
+            }
+
+            json.put("latency_us", latency);
+            json.put("histogram_us", histogramJson);
+        }
+    }
+
+    public static class ApiMetrics {
+        private final LongAdder inFlight = new LongAdder();
+        private final Histogram latency = new Histogram();
+        private final Map<String, LongAdder> errCodes = new ConcurrentHashMap<>();
+
+        private void record(long us, String errCode) {
+            latency.record(us);
+
+            LongAdder count = errCodes.get(errCode);
+            if (count == null) {
+                count = errCodes.computeIfAbsent(errCode, k -> new LongAdder());
+            }
+            count.increment();
+        }
+
+        private JSONObject toJson(String api) throws JSONException {
+            JSONObject codes = new JSONObject();
+            for (Map.Entry<String, LongAdder> entry : errCodes.entrySet()) {
+                codes.put(entry.getKey(), entry.getValue().sum());
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("api", api);
+            json.put("calls", latency.count());
+            json.put("in_flight", inFlight.sum());
+            json.put("err_codes", codes);
+            latency.toJson(json);
+            return json;
+        }
+    }
+
+    private static class EventMetrics {
+        /* Broadcast or callback until OpenSyncPublisher.publish() */
+        private final Histogram sourceToEnqueue = new Histogram();
+        /* Publisher queue, and holding while nobody is subscribed */
+        private final Histogram enqueueToSend = new Histogram();
+
+        private JSONObject toJson(String api) throws JSONException {
+            JSONObject source = new JSONObject();
+            sourceToEnqueue.toJson(source);
+            JSONObject enqueue = new JSONObject();
+            enqueueToSend.toJson(enqueue);
+
+            JSONObject json = new JSONObject();
+            json.put("api", api);
+            json.put("events", enqueueToSend.count());
+            json.put("source_to_enqueue", source);
+            json.put("enqueue_to_send", enqueue);
+            return json;
+        }
+    }
+
+    /* Upper bound of the bucket holding the percentile, in us */
+    private static long percentile(long[] buckets, long total, int p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (total * p + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return (1L << (i + 1)) - 1;
+            }
+        }
+        return (1L << BUCKETS) - 1;
+    }
+
+    public static ApiMetrics begin(String api) {
+        ApiMetrics metrics = apis.get(api);
+        if (metrics == null) {
+            metrics = apis.computeIfAbsent(api, k -> new ApiMetrics());
+        }
+        metrics.inFlight.increment();
+        return metrics;
+    }
+
+    public static void end(ApiMetrics metrics, long startNanos, String errCode) {
+        metrics.inFlight.decrement();
+        metrics.record((System.nanoTime() - startNanos) / 1000, errCode != null ? errCode : "none");
+    }
+
+    /* Stamps of a published event, in elapsedRealtimeNanos() */
+    public static void recordEvent(String api, long srcNanos, long enqNanos, long sendNanos) {
+        EventMetrics metrics = events.get(api);
+        if (metrics == null) {
+            metrics = events.computeIfAbsent(api, k -> new EventMetrics());
+        }
+        metrics.sourceToEnqueue.record((enqNanos - srcNanos) / 1000);
+        metrics.enqueueToSend.record((sendNanos - enqNanos) / 1000);
+    }
+
+    public static JSONObject toJson() throws JSONException {
+        JSONArray apiArray = new JSONArray();
+        for (Map.Entry<String, ApiMetrics> entry : apis.entrySet()) {
+            apiArray.put(entry.getValue().toJson(entry.getKey()));
+        }
+        JSONArray eventArray = new JSONArray();
+        for (Map.Entry<String, EventMetrics> entry : events.entrySet()) {
+            eventArray.put(entry.getValue().toJson(entry.getKey()));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("uptime_ms", SystemClock.elapsedRealtime() - startTime);
+        json.put("apis", apiArray);
+        json.put("events", eventArray);
+        OpenSyncPublisher publisher = OpenSyncPublisher.getInstance();
+        if (publisher != null) {
+            json.put("publisher", publisher.toJson());
+        }
+        OpenSyncEventDebouncer debouncer = OpenSyncEventDebouncer.getInstance();
+        if (debouncer != null) {
+            json.put("debouncer", debouncer.toJson());
+        }
+        return json;
+    }
+
+    /* Publish a snapshot as osandroid_metrics_event every intervalMs, 0 disables it */
+    public static synchronized void startPublishing(long intervalMs) {
+        stopPublishing();
+        if (intervalMs <= 0) {
+            return;
+        }
+
+        publishTimer = new Timer("OpenSyncMetrics", true);
+        publishTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put("api", EVENT_API);
+                    JSONArray params = new JSONArray();
+                    params.put(new JSONObject().put("metrics", toJson()));
+                    json.put("params", params);
+                    EventBus.getDefault().post(new OpenSyncEvent(EVENT_API, json));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Build JSON failed: " + e.getMessage());
+                }
+            }
+        }, intervalMs, intervalMs);
+        Log.i(TAG, "Publish every " + intervalMs + " ms");
+    }
+
+    public static synchronized void stopPublishing() {
+        if (publishTimer != null) {
+            publishTimer.cancel();
+            publishTimer = null;
+        }
+    }
+}
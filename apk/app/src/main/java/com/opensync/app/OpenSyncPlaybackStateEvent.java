@@ -0,0 +1,30 @@
+package com.opensync.app;
+
+import android.media.session.PlaybackState;
+
+/*
+ * Playback state change of a session posted on the EventBus, stamped when the
+ * MediaController callback fired. The state is null when the session went away.
+ */
+public class OpenSyncPlaybackStateEvent {
+    private final String packageName;
+    private final PlaybackState state;
+    private final long srcNanos = OpenSyncTimestamps.now();
+
+    public OpenSyncPlaybackStateEvent(String packageName, PlaybackState state) {
+        this.packageName = packageName;
+        this.state = state;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public PlaybackState getState() {
+        return state;
+    }
+
+    public long getSrcNanos() {
+        return srcNanos;
+    }
+}
@@ -0,0 +1,404 @@
+package com.opensync.app;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Owns the PUB socket on its own thread. Events go out as [topic][payload]
+ * with the api name as topic, so subscribers use ZMQ prefix subscriptions and
+ * events nobody subscribed to are not sent at all. Producers on any thread call
+ * publish(), which appends to a lock-free queue and, if the thread is not
+ * already signalled, writes a byte to the wakeup pipe. The thread waits on the
+ * socket and that pipe, and drains whatever queued up in one go, serializing
+ * each event into a reused buffer. Events beyond MAX_DEPTH are dropped and
+ * counted.
+ *
+ * Each event is stamped with a sequence number and kept in the event journal
+ * as soon as it leaves the queue, sent or not, so a subscriber which was not
+ * connected can replay it.
+ *
+ * Events are JSON on the api topic. A subscriber which wants CBOR subscribes
+ * to CBOR_TOPIC_PREFIX + api instead, the event is only encoded in CBOR while
+ * such a subscription exists.
+ *
+ * The socket is an XPUB, so subscriptions are visible here. An event no
+ * subscription matches yet is held back, already journaled, and sent as soon
+ * as a subscription matching its topic comes in. A manager which subscribes
+ * first thus does not cost the others their events. This replaces waiting a
+ * fixed time for androidm at startup. Subscriptions arrive on the socket, so
+ * held events cost nothing while nobody subscribes.
+ */
+public class OpenSyncPublisher implements Runnable {
+    private static final String TAG = "OpenSync Publisher";
+    private static final String ADDR = "tcp://127.0.0.1:10087";
+    public static final String CBOR_TOPIC_PREFIX = "cbor/";
+    private static final int MAX_DEPTH = 1024;
+    /* Upper bound of events sent per wakeup, so stop() is noticed under load */
+    private static final int MAX_BATCH = 64;
+    /* Events held while nobody subscribed to them, the oldest are evicted beyond it */
+    private static final int MAX_HELD = 256;
+
+    private static volatile OpenSyncPublisher instance;
+
+    private final ZContext zContext;
+    private final ConcurrentLinkedQueue<JSONObject> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final OpenSyncIPCBuffer buffer = new OpenSyncIPCBuffer();
+    private final OpenSyncIPCBuffer cborBuffer = new OpenSyncIPCBuffer();
+    private final OpenSyncEventJournal journal;
+    /* Only touched on the publisher thread */
+    private final ArrayDeque<Held> held = new ArrayDeque<>();
+    private final Set<String> subscriptions = new HashSet<>();
+    private final ByteBuffer wakeupDrain = ByteBuffer.allocate(64);
+    /* Set once a wakeup byte is in the pipe, so a burst of events writes one */
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private volatile Pipe wakeup;
+    private volatile int heldCount;
+    private volatile int subscriptionCount;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    /* A journaled event waiting for a subscriber, with its serialized JSON */
+    private static class Held {
+        final String api;
+        final JSONObject json;
+        final byte[] bytes;
+
+        Held(String api, JSONObject json, byte[] bytes) {
+            this.api = api;
+            this.json = json;
+            this.bytes = bytes;
+        }
+    }
+
+    public OpenSyncPublisher(Context context, ZContext zContext) {
+        this.zContext = zContext;
+        journal = new OpenSyncEventJournal(context.getCacheDir(), OpenSyncEventJournal.DEFAULT_SIZE);
+    }
+
+    public static OpenSyncPublisher getInstance() {
+        return instance;
+    }
+
+    public OpenSyncEventJournal getJournal() {
+        return journal;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        try {
+            wakeup = Pipe.open();
+            wakeup.source().configureBlocking(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open the wakeup pipe, events are not published: " + e.getMessage());
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "OpenSyncPublisher");
+        thread.start();
+        instance = this;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            signal();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    /* Safe from any thread, never blocks. The event source is the time of this call */
+    public boolean publish(JSONObject json) {
+        return publish(json, OpenSyncTimestamps.now());
+    }
+
+    /* srcNanos is the elapsedRealtimeNanos() of the broadcast or callback behind the event */
+    public boolean publish(JSONObject json, long srcNanos) {
+        try {
+            OpenSyncTimestamps.put(json, srcNanos, OpenSyncTimestamps.now());
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot stamp event: " + e.getMessage());
+        }
+
+        int n = depth.incrementAndGet();
+        if (n > MAX_DEPTH) {
+            depth.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+
+        int max = maxDepth.get();
+        while (n > max && !maxDepth.compareAndSet(max, n)) {
+            max = maxDepth.get();
+        }
+
+        queue.offer(json);
+        enqueued.increment();
+        if (signalled.compareAndSet(false, true)) {
+            signal();
+        }
+        return true;
+    }
+
+    private void signal() {
+        Pipe pipe = wakeup;
+        if (pipe == null) {
+            return;
+        }
+        try {
+            pipe.sink().write(ByteBuffer.wrap(new byte[] {1}));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot wake the publisher up: " + e.getMessage());
+        }
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("depth", depth.get());
+        json.put("max_depth", maxDepth.get());
+        json.put("enqueued", enqueued.sum());
+        json.put("sent", sent.sum());
+        json.put("dropped", dropped.sum());
+        json.put("batches", batches.sum());
+        json.put("subscriptions", subscriptionCount);
+        json.put("held", heldCount);
+        json.put("evicted", evicted.sum());
+        json.put("epoch", journal.getEpoch());
+        return json;
+    }
+
+    @Override
+    public void run() {
+        ZMQ.Socket socket = zContext.createSocket(SocketType.XPUB);
+        ZMQ.Poller poller = zContext.createPoller(2);
+        Pipe pipe = wakeup;
+        try {
+            socket.bind(ADDR);
+            int socketIndex = poller.register(socket, ZMQ.Poller.POLLIN);
+            int wakeupIndex = poller.register(pipe.source(), ZMQ.Poller.POLLIN);
+
+            long reportedDrops = 0;
+            boolean full = false;
+            while (running) {
+                /* Only wait when the last drain left the queue empty, a publish() after it signals */
+                if (!full) {
+                    if (poller.poll(-1) < 0) {
+                        break;
+                    }
+                    if (poller.pollin(wakeupIndex)) {
+                        drainWakeup(pipe);
+                    }
+                }
+                if (poller.pollin(socketIndex) || full) {
+                    readSubscriptions(socket);
+                }
+
+                signalled.set(false);
+                int count = 0;
+                JSONObject json;
+                while (count < MAX_BATCH && (json = queue.poll()) != null) {
+                    depth.decrementAndGet();
+                    dispatch(socket, json);
+                    count++;
+                }
+                full = count == MAX_BATCH;
+
+                if (count > 0) {
+                    batches.increment();
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        Log.w(TAG, (drops - reportedDrops) + " events dropped, queue is full (" + MAX_DEPTH + ")");
+                        reportedDrops = drops;
+                    }
+                }
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) {
+                Log.e(TAG, "ZMQ Exception occurred with error code: " + e.getErrorCode(), e);
+            }
+        } finally {
+            poller.close();
+            zContext.destroySocket(socket);
+            try {
+                pipe.source().close();
+                pipe.sink().close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close the wakeup pipe: " + e.getMessage());
+            }
+            wakeup = null;
+        }
+    }
+
+    private void drainWakeup(Pipe pipe) {
+        try {
+            do {
+                wakeupDrain.clear();
+            } while (pipe.source().read(wakeupDrain) > 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read the wakeup pipe: " + e.getMessage());
+        }
+    }
+
+    /* XPUB delivers [1][topic] per new subscription and [0][topic] when the last subscriber of it is gone */
+    private void readSubscriptions(ZMQ.Socket socket) {
+        boolean added = false;
+        byte[] frame;
+        while ((frame = socket.recv(ZMQ.DONTWAIT)) != null) {
+            if (frame.length == 0) {
+                continue;
+            }
+            String topic = new String(frame, 1, frame.length - 1, ZMQ.CHARSET);
+            if (frame[0] == 1) {
+                added |= subscriptions.add(topic);
+                Log.i(TAG, "Subscribed: " + topic);
+            } else if (frame[0] == 0) {
+                subscriptions.remove(topic);
+                Log.i(TAG, "Unsubscribed: " + topic);
+            }
+        }
+        subscriptionCount = subscriptions.size();
+
+        if (added && !held.isEmpty()) {
+            flushHeld(socket);
+        }
+    }
+
+    /* Send the held events a subscription matches now, in order, the others stay held */
+    private void flushHeld(ZMQ.Socket socket) {
+        int flushed = 0;
+        Iterator<Held> iterator = held.iterator();
+        while (iterator.hasNext()) {
+            Held event = iterator.next();
+            if (isWanted(event.api)) {
+                iterator.remove();
+                send(socket, event.api, event.json, event.bytes, event.bytes.length);
+                flushed++;
+            }
+        }
+        heldCount = held.size();
+        if (flushed > 0) {
+            Log.i(TAG, "Flushed " + flushed + " held events, " + held.size() + " still held");
+        }
+    }
+
+    /* An evicted event is still in the journal, a subscriber can replay it */
+    private void hold(Held event) {
+        if (held.size() >= MAX_HELD) {
+            held.poll();
+            evicted.increment();
+        }
+        held.offer(event);
+        heldCount = held.size();
+    }
+
+    /* Whether a subscriber gets the events of api, in JSON or in CBOR */
+    private boolean isWanted(String api) {
+        return isSubscribed(api) || isSubscribed(CBOR_TOPIC_PREFIX + api);
+    }
+
+    /* Stamp and journal an event as it leaves the queue, then send or hold it */
+    private void dispatch(ZMQ.Socket socket, JSONObject json) {
+        String api = json.optString("api");
+        long seq;
+        try {
+            JSONObject ts = json.optJSONObject(OpenSyncTimestamps.KEY);
+            if (ts != null) {
+                long now = OpenSyncTimestamps.now();
+                ts.put("send", now);
+                OpenSyncMetrics.recordEvent(api, ts.optLong("src"), ts.optLong("enq"), now);
+            }
+            seq = journal.stamp(json);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot stamp event: " + e.getMessage());
+            dropped.increment();
+            return;
+        }
+
+        /* The journal keeps JSON whatever the wire encoding is */
+        buffer.reset();
+        buffer.appendUtf8(json.toString());
+        journal.append(seq, api, buffer.array(), 0, buffer.length());
+
+        if (isWanted(api)) {
+            send(socket, api, json, buffer.array(), buffer.length());
+        } else {
+            hold(new Held(api, json, Arrays.copyOf(buffer.array(), buffer.length())));
+        }
+    }
+
+    private void send(ZMQ.Socket socket, String api, JSONObject json, byte[] bytes, int length) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Publish: " + api);
+        }
+
+        sendFrames(socket, api, bytes, length);
+
+        String cborTopic = CBOR_TOPIC_PREFIX + api;
+        if (isSubscribed(cborTopic)) {
+            try {
+                cborBuffer.reset();
+                OpenSyncCbor.encode(json, cborBuffer);
+                sendFrames(socket, cborTopic, cborBuffer.array(), cborBuffer.length());
+            } catch (JSONException e) {
+                Log.e(TAG, "CBOR encoding of " + api + " failed: " + e.getMessage());
+                dropped.increment();
+            }
+        }
+    }
+
+    /* [topic][payload], subscribers filter on the topic prefix before anything is read */
+    private void sendFrames(ZMQ.Socket socket, String topic, byte[] payload, int length) {
+        if (socket.send(topic.getBytes(ZMQ.CHARSET), ZMQ.SNDMORE | ZMQ.DONTWAIT) &&
+                socket.send(payload, 0, length, ZMQ.DONTWAIT)) {
+            sent.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /* Whether a subscription matches topic, the way ZMQ matches prefixes */
+    private boolean isSubscribed(String topic) {
+        for (String subscription : subscriptions) {
+            if (topic.startsWith(subscription)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
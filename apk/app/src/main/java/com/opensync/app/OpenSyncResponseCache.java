@@ -0,0 +1,82 @@
+package com.opensync.app;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Ready-to-send replies of the unit identity APIs, shared by all IPC workers.
+ * JSON and CBOR replies are kept apart, each is encoded once.
+ *
+ * Immutable values are computed once per process. Semi-static values stay
+ * cached until an explicit invalidate(), e.g. the unit id follows the Wi-Fi MAC.
+ */
+public class OpenSyncResponseCache {
+    private static final String TAG = "OpenSync ResponseCache";
+
+    private static final Set<String> IMMUTABLE = new HashSet<>(Arrays.asList(
+            "osp_unit_serial_get",
+            "osp_unit_model_get",
+            "osp_unit_sku_get",
+            "osp_unit_hw_revision_get",
+            "osp_unit_platform_version_get",
+            "osp_unit_sw_version_get",
+            "osp_unit_vendor_name_get",
+            "osp_unit_vendor_part_get",
+            "osp_unit_manufacturer_get",
+            "osp_unit_factory_get",
+            "osp_unit_mfg_date_get",
+            "osp_unit_dhcpc_hostname_get"));
+
+    private static final Set<String> SEMI_STATIC = new HashSet<>(Arrays.asList(
+            "osp_unit_id_get"));
+
+    private static final Map<String, byte[]> replies = new ConcurrentHashMap<>();
+    private static final Map<String, byte[]> cborReplies = new ConcurrentHashMap<>();
+    /* Bumped on every invalidation, so a reply computed before it is not stored */
+    private static final AtomicLong generation = new AtomicLong();
+
+    public static boolean isCacheable(String apiName) {
+        return IMMUTABLE.contains(apiName) || SEMI_STATIC.contains(apiName);
+    }
+
+    public static byte[] get(String apiName, boolean cbor) {
+        return (cbor ? cborReplies : replies).get(apiName);
+    }
+
+    public static long generation() {
+        return generation.get();
+    }
+
+    /* Store a reply computed while generation() was gen */
+    public static void put(String apiName, boolean cbor, byte[] reply, long gen) {
+        if (!isCacheable(apiName)) {
+            return;
+        }
+
+        Map<String, byte[]> map = cbor ? cborReplies : replies;
+        map.put(apiName, reply);
+        if (gen != generation.get() && SEMI_STATIC.contains(apiName)) {
+            /* Invalidated while computing, drop the possibly stale reply */
+            map.remove(apiName, reply);
+        }
+    }
+
+    public static void invalidate(String apiName) {
+        if (IMMUTABLE.contains(apiName)) {
+            return;
+        }
+
+        generation.incrementAndGet();
+        boolean removed = replies.remove(apiName) != null;
+        removed |= cborReplies.remove(apiName) != null;
+        if (removed) {
+            Log.d(TAG, "Invalidated " + apiName);
+        }
+    }
+}
@@ -30,16 +30,12 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 
 
-import org.zeromq.SocketType;
-import org.zeromq.ZMQ;
-import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZContext;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.media.session.PlaybackState;
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
@@ -49,7 +45,11 @@ public class OpenSyncService extends Service {
     private static final String EVENT_TAG = "OpenSync Event Service";
     private BroadcastReceiver eventReceiver;
     public  ZContext zContext;
-    Socket publisher;
+    OpenSyncPublisher publisher;
+    OpenSyncEventDebouncer debouncer;
+    OpenSyncStreamingSampler streamingSampler;
+    OpenSyncStreamingEvent streamingEvent;
+    OpenSyncStreamingDelta streamingDelta;
     Thread ipcServerThread;
 
     @Override
@@ -74,20 +74,24 @@ public class OpenSyncService extends Service {
 
         /* Event Service */
         zContext = new ZContext();
-        publisher = zContext.createSocket(SocketType.PUB);
-        publisher.bind("tcp://127.0.0.1:10087");
+        publisher = new OpenSyncPublisher(this, zContext);
+        publisher.start();
+        debouncer = new OpenSyncEventDebouncer(publisher, BuildConfig.OSYNC_EVENT_DEBOUNCE_MS);
 
         eventReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 String action = intent.getAction();
+                long srcNanos = OpenSyncTimestamps.now();
                 String api = "";
                 String ssid = "";
                 String bssid = "";
-                String phyIface = "";
                 String mac = "";
 
                 if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
+                    /* Unit id is derived from the Wi-Fi MAC */
+                    OpenSyncResponseCache.invalidate("osp_unit_id_get");
+
                     NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
                     if (networkInfo.isConnected()) {
                         WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
@@ -126,101 +130,85 @@ public class OpenSyncService extends Service {
 
                         json.put("params", params);
 
-                        publisher.send(json.toString(), 0);
+                        publisher.publish(json, srcNanos);
                     } catch (JSONException e) {
                         Log.e(EVENT_TAG, "Build JSON failed");
                     }
                 }
 
+                /* Peripheral broadcasts come in bursts, rescans are debounced per interface */
                 if (    action.equals("android.intent.action.HDMI_PLUGGED") ||
                         action.equals("android.intent.action.HDMISTATUS_CHANGED") ) {
                     boolean plugged = intent.getBooleanExtra("state", false);
-                    OpenSyncConnectDevice ConnectDevice = new OpenSyncConnectDevice(context);
-                    ConnectDevice.initializeDisplayInfo();
-                    if (plugged) {
-                        Log.i(EVENT_TAG, "HDMI device connected");
-                    } else {
-                       Log.i(EVENT_TAG, "HDMI device disconnected");
-                       ConnectDevice.deleteDevice("HDMI");
-                    }
+                    debouncer.post("HDMI", () -> {
+                        OpenSyncConnectDevice ConnectDevice = new OpenSyncConnectDevice(context);
+                        ConnectDevice.initializeDisplayInfo();
+                        if (plugged) {
+                            Log.i(EVENT_TAG, "HDMI device connected");
+                        } else {
+                            Log.i(EVENT_TAG, "HDMI device disconnected");
+                            ConnectDevice.deleteDevice("HDMI");
+                        }
 
-                    api = "osandroid_peripheral_device_update";
-                    phyIface = "HDMI";
-                    try {
                         JSONObject hdmiJson = new JSONObject();
-                        hdmiJson.put("api", api);
-                        ConnectDevice.osandroidConnectedDeviceUpdate(hdmiJson, phyIface);
-
-                        if (!hdmiJson.toString().isEmpty()) {
-                            publisher.send(hdmiJson.toString(), 0);
-                        }
-                    } catch (JSONException e) {
-                        Log.e(EVENT_TAG, "Build JSON failed");
-                    }
+                        hdmiJson.put("api", "osandroid_peripheral_device_update");
+                        ConnectDevice.osandroidConnectedDeviceUpdate(hdmiJson, "HDMI");
+                        return hdmiJson;
+                    });
                 }
 
                 if (    action.equals("android.hardware.usb.action.USB_STATE") ||
                         action.equals("android.hardware.usb.action.USB_DEVICE_ATTACHED") ||
                         action.equals("android.hardware.usb.action.USB_DEVICE_DETACHED") ) {
+                    boolean attached = action.equals(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+                    boolean detached = action.equals(UsbManager.ACTION_USB_DEVICE_DETACHED);
+                    debouncer.post("USB", () -> {
+                        OpenSyncConnectDevice ConnectDevice = new OpenSyncConnectDevice(context);
+                        ConnectDevice.initializeUSBInfo();
+                        if (attached) {
+                            Log.i(EVENT_TAG, "USB device connected");
+                        } else if (detached) {
+                            ConnectDevice.deleteDevice("USB");
+                            Log.i(EVENT_TAG, "USB device disconnected");
+                        }
 
-                    OpenSyncConnectDevice ConnectDevice = new OpenSyncConnectDevice(context);
-                    ConnectDevice.initializeUSBInfo();
-                    if (action.equals(UsbManager.ACTION_USB_DEVICE_ATTACHED)) {
-                        Log.i(EVENT_TAG, "USB device connected");
-                    } else if (action.equals(UsbManager.ACTION_USB_DEVICE_DETACHED)) {
-                        ConnectDevice.deleteDevice("USB");
-                        Log.i(EVENT_TAG, "USB device disconnected");
-                    }
-
-                    api = "osandroid_peripheral_device_update";
-                    phyIface = "USB";
-                    try {
                         JSONObject usbJson = new JSONObject();
-                        usbJson.put("api", api);
-
-                        ConnectDevice.osandroidConnectedDeviceUpdate(usbJson, phyIface);
-                        if (!usbJson.toString().isEmpty()) {
-                            publisher.send(usbJson.toString(), 0);
-                        }
-                    } catch (JSONException e) {
-                        Log.e(EVENT_TAG, "Build JSON failed");
-                    }
+                        usbJson.put("api", "osandroid_peripheral_device_update");
+                        ConnectDevice.osandroidConnectedDeviceUpdate(usbJson, "USB");
+                        return usbJson;
+                    });
                 }
 
                 if (    action.equals("android.bluetooth.device.action.BOND_STATE_CHANGED") ||
                         action.equals("android.bluetooth.device.action.ACL_DISCONNECTED") ||
                         action.equals("android.bluetooth.device.action.ACL_CONNECTED") ) {
-                    OpenSyncConnectDevice ConnectDevice = new OpenSyncConnectDevice(context);
-                    api = "osandroid_peripheral_device_update";
-                    phyIface = "Bluetooth";
-                    JSONObject BLEJson = new JSONObject();
-                    if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
-                        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                        Log.i(EVENT_TAG, "Bluetooth device connected: " + device.getName() + " (" + device.getAddress() + ")");
-                        BLEJson = new JSONObject();
-                        try {
-                            BLEJson.put("api", api);
-                            ConnectDevice.BLEDeviceUpdate(BLEJson, device);
-                            ConnectDevice.BLEJsonPayload(BLEJson, device, true);
-                        } catch (JSONException e) {
-                            Log.e(EVENT_TAG, "Build JSON failed");
-                        }
-                    } else if (BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
-                        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                        Log.i(EVENT_TAG, "Bluetooth device disconnected: " + device.getName() + " (" + device.getAddress() + ")");
-                        try {
-                            BLEJson = new JSONObject();
-                            BLEJson.put("api", api);
-                            ConnectDevice.deleteBLEdevice(phyIface, device.getAddress());
-                            ConnectDevice.BLEJsonPayload(BLEJson, device, false);
-                        } catch (JSONException e) {
-                            Log.e(EVENT_TAG, "Build JSON failed");
-                        }
+                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    if (device == null) {
+                        return;
                     }
 
-                    if (!BLEJson.toString().isEmpty() || BLEJson.toString().length() > 5) {
-                        publisher.send(BLEJson.toString(), 0);
+                    String key = "Bluetooth/" + device.getAddress();
+                    if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                        /* Carries no connection state, only extends a pending window */
+                        debouncer.post(key, null);
+                        return;
                     }
+
+                    boolean connected = BluetoothDevice.ACTION_ACL_CONNECTED.equals(action);
+                    debouncer.post(key, () -> {
+                        OpenSyncConnectDevice ConnectDevice = new OpenSyncConnectDevice(context);
+                        JSONObject BLEJson = new JSONObject();
+                        BLEJson.put("api", "osandroid_peripheral_device_update");
+                        if (connected) {
+                            Log.i(EVENT_TAG, "Bluetooth device connected: " + device.getName() + " (" + device.getAddress() + ")");
+                            ConnectDevice.BLEDeviceUpdate(BLEJson, device);
+                        } else {
+                            Log.i(EVENT_TAG, "Bluetooth device disconnected: " + device.getName() + " (" + device.getAddress() + ")");
+                            ConnectDevice.deleteBLEdevice("Bluetooth", device.getAddress());
+                        }
+                        ConnectDevice.BLEJsonPayload(BLEJson, device, connected);
+                        return BLEJson;
+                    });
                 }
             }
         };
@@ -242,31 +230,32 @@ public class OpenSyncService extends Service {
         filter.addAction("android.bluetooth.device.action.ACL_DISCONNECTED");
         filter.addAction("android.bluetooth.device.action.BOND_STATE_CHANGED");
 
-        try {
-            Thread.sleep(10000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
+        /* Events raised before androidm subscribes are held by the publisher */
         registerReceiver(eventReceiver, filter);
 
-        OpenSyncStreamingEvent openSyncStreamingEvent = new OpenSyncStreamingEvent(this);
+        streamingDelta = new OpenSyncStreamingDelta(this, publisher);
+        streamingEvent = new OpenSyncStreamingEvent(this);
         EventBus.getDefault().register(this);
+        OpenSyncMetrics.startPublishing(BuildConfig.OSYNC_METRICS_INTERVAL * 1000L);
+        if (BuildConfig.OSYNC_STREAMING_SAMPLE_MS > 0) {
+            streamingSampler = new OpenSyncStreamingSampler(BuildConfig.OSYNC_STREAMING_SAMPLE_MS);
+        }
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onEventBusPlaybackState(PlaybackState state) {
-        Log.d(EVENT_TAG, "PlaybackState: " + state);
-        OpenSyncStreaming openSyncStreaming = new OpenSyncStreaming(this);
-
-        JSONObject streamingEvent = new JSONObject();;
-        try {
-            streamingEvent.put("api", "osandroid_streaming_event");
-            openSyncStreaming.osandroidStreamingGet(streamingEvent);
-        } catch (JSONException e) {
-            e.printStackTrace();
+    /* Only hands the change over to the delta thread, which builds and publishes the event */
+    @Subscribe(threadMode = ThreadMode.POSTING)
+    public void onEventBusPlaybackState(OpenSyncPlaybackStateEvent event) {
+        Log.d(EVENT_TAG, event.getPackageName() + " PlaybackState: " + event.getState());
+        streamingDelta.post(event.getPackageName(), event.getSrcNanos());
+        if (streamingSampler != null) {
+            streamingSampler.onPlaybackState(event.getState());
         }
-        publisher.send(streamingEvent.toString(), 0);
+    }
+
+    /* Enqueueing never blocks, so it is done on the posting thread */
+    @Subscribe(threadMode = ThreadMode.POSTING)
+    public void onEventBusPublish(OpenSyncEvent event) {
+        publisher.publish(event.getJson(), event.getSrcNanos());
     }
 
     @Override
@@ -279,22 +268,41 @@ public class OpenSyncService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
+        OpenSyncMetrics.stopPublishing();
+
         if (ipcServerThread != null) {
             ipcServerThread.interrupt();
         }
 
+        if (eventReceiver != null) {
+            unregisterReceiver(eventReceiver);
+            eventReceiver = null;
+        }
+
+        if (debouncer != null) {
+            debouncer.stop();
+        }
+
+        if (streamingSampler != null) {
+            streamingSampler.stop();
+        }
+
+        if (streamingEvent != null) {
+            streamingEvent.stop();
+        }
+
+        if (streamingDelta != null) {
+            streamingDelta.stop();
+        }
+
         if (publisher != null) {
-            publisher.close();
+            publisher.stop();
         }
 
         if (zContext != null) {
             zContext.close();
         }
 
-        if (eventReceiver != null) {
-            unregisterReceiver(eventReceiver);
-        }
-
         EventBus.getDefault().unregister(this);
     }
 
@@ -0,0 +1,155 @@
+package com.opensync.app;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Coalesces identical concurrent requests of expensive APIs, shared by the IPC
+ * workers and the event path of OpenSyncService.
+ *
+ * Requests with the same api and params attach to the computation already in
+ * flight and get its result. A successful result is also served for freshMs
+ * after it completed. Callers which must not see state from before a point in
+ * time, e.g. an event, pass notBeforeNanos and only share computations started
+ * after it. Nested values of a shared result must be treated as read-only,
+ * callers only get their own copy of the top level.
+ */
+public class OpenSyncSingleFlight {
+    private static final String TAG = "OpenSync SingleFlight";
+
+    public interface Handler {
+        void handle(JSONObject jsonObject) throws JSONException;
+    }
+
+    /* Distinct params could otherwise pile up results nobody asks for again */
+    private static final int MAX_RECENT = 32;
+
+    private static class Flight extends CompletableFuture<JSONObject> {
+        final long startNanos = System.nanoTime();
+    }
+
+    private static class Result {
+        final JSONObject json;
+        final long startNanos;
+        final long completedNanos;
+
+        Result(JSONObject json, long startNanos, long completedNanos) {
+            this.json = json;
+            this.startNanos = startNanos;
+            this.completedNanos = completedNanos;
+        }
+    }
+
+    private static final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private static final Map<String, Result> recent = new ConcurrentHashMap<>();
+
+    /* Run handler on jsonObject ({"api":...,"params":...}), or take the result of an identical request */
+    public static void apply(JSONObject jsonObject, long freshMs, Handler handler) throws JSONException {
+        apply(jsonObject, freshMs, Long.MIN_VALUE, handler);
+    }
+
+    public static void apply(JSONObject jsonObject, long freshMs, long notBeforeNanos, Handler handler)
+            throws JSONException {
+        Object params = jsonObject.opt("params");
+        String key = jsonObject.optString("api") + '\0' + (params != null ? params.toString() : "");
+        copyResult(run(key, jsonObject, freshMs, notBeforeNanos, handler), jsonObject);
+    }
+
+    private static boolean startedAfter(long startNanos, long notBeforeNanos) {
+        return notBeforeNanos == Long.MIN_VALUE || startNanos - notBeforeNanos >= 0;
+    }
+
+    private static JSONObject run(String key, JSONObject request, long freshMs, long notBeforeNanos,
+                                  Handler handler) throws JSONException {
+        while (true) {
+            Result result = recent.get(key);
+            if (result != null && System.nanoTime() - result.completedNanos < freshMs * 1_000_000L &&
+                    startedAfter(result.startNanos, notBeforeNanos)) {
+                return result.json;
+            }
+
+            Flight flight = new Flight();
+            Flight leader = inFlight.putIfAbsent(key, flight);
+            if (leader == null) {
+                return compute(key, request, freshMs, handler, flight);
+            }
+            if (!startedAfter(leader.startNanos, notBeforeNanos)) {
+                /* Too old for this caller, do not disturb the callers waiting on it */
+                return compute(key, request, freshMs, handler, null);
+            }
+
+            try {
+                return await(leader);
+            } catch (ExecutionException e) {
+                /* The leader failed, e.g. its own deadline expired, try again on our own */
+                Log.d(TAG, "Leader of " + key.replace('\0', ' ') + " failed: " + e.getCause());
+            }
+        }
+    }
+
+    private static JSONObject compute(String key, JSONObject request, long freshMs, Handler handler,
+                                      Flight flight) throws JSONException {
+        long startNanos = System.nanoTime();
+        try {
+            JSONObject json = new JSONObject(request.toString());
+            handler.handle(json);
+
+            if (freshMs > 0 && "200".equals(json.optString("errCode"))) {
+                if (recent.size() >= MAX_RECENT) {
+                    recent.clear();
+                }
+                recent.put(key, new Result(json, startNanos, System.nanoTime()));
+            }
+            if (flight != null) {
+                flight.complete(json);
+            }
+            return json;
+        } catch (JSONException | RuntimeException e) {
+            if (flight != null) {
+                flight.completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            if (flight != null) {
+                inFlight.remove(key, flight);
+            }
+        }
+    }
+
+    /* Wait for the leader within the deadline of the calling request */
+    private static JSONObject await(Flight leader) throws ExecutionException {
+        try {
+            long deadline = OpenSyncDeadline.get();
+            if (deadline == OpenSyncDeadline.NONE) {
+                return leader.get();
+            }
+            return leader.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new OpenSyncDeadline.ExpiredException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OpenSyncDeadline.ExpiredException();
+        }
+    }
+
+    /* The caller keeps its own api, e.g. an event reusing osandroid_streaming_get */
+    private static void copyResult(JSONObject result, JSONObject jsonObject) throws JSONException {
+        Iterator<String> keys = result.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!"api".equals(key)) {
+                jsonObject.put(key, result.get(key));
+            }
+        }
+    }
+}
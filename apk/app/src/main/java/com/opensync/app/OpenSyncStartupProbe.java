@@ -0,0 +1,91 @@
+package com.opensync.app;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.function.LongSupplier;
+
+/*
+ * Measures the time from a playback start to the first decoded frame. After
+ * start() the decoder frame count and the playback position are sampled every
+ * PROBE_INTERVAL_MS on the owner's handler until either moves, or until
+ * MAX_PROBE_MS passes. Nothing is scheduled outside of a measurement. The
+ * decoder is shared, so one measurement runs at a time, the latest start wins.
+ * Times are elapsedRealtimeNanos(), the result is exact to PROBE_INTERVAL_MS.
+ */
+public class OpenSyncStartupProbe {
+    private static final String TAG = "OpenSync StartupProbe";
+    private static final long PROBE_INTERVAL_MS = 10;
+    private static final long MAX_PROBE_MS = 15000;
+
+    public interface Listener {
+        void onStartup(long startupMs);
+    }
+
+    private final Handler handler;
+    /* Only touched on the handler thread */
+    private final OpenSyncVdecStatus vdecStatus = new OpenSyncVdecStatus();
+    private LongSupplier position;
+    private Listener listener;
+    private long startNanos;
+    private long baselineFrames;
+    private long baselinePosition;
+    private int samples;
+
+    private final Runnable probe = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+    public OpenSyncStartupProbe(Handler handler) {
+        this.handler = handler;
+    }
+
+    /* Called on the handler thread, startNanos is when the playback start was reported */
+    public void start(long startNanos, LongSupplier position, Listener listener) {
+        handler.removeCallbacks(probe);
+        this.position = position;
+        this.listener = listener;
+        this.startNanos = startNanos;
+        baselineFrames = vdecStatus.read() ? vdecStatus.getFrameCount() : 0;
+        baselinePosition = position.getAsLong();
+        samples = 0;
+        Log.i(TAG, "Measuring startup time, " + baselineFrames + " frames at position " + baselinePosition);
+        handler.postDelayed(probe, PROBE_INTERVAL_MS);
+    }
+
+    /* Cancels the measurement started for listener, or any with null */
+    public void cancel(Listener listener) {
+        if (listener == null || listener == this.listener) {
+            handler.removeCallbacks(probe);
+            this.listener = null;
+            this.position = null;
+        }
+    }
+
+    private void sample() {
+        long now = OpenSyncTimestamps.now();
+        samples++;
+
+        boolean decoding = vdecStatus.read() && vdecStatus.getFrameCount() > 0
+                && vdecStatus.getFrameCount() != baselineFrames;
+        if (decoding || position.getAsLong() > baselinePosition) {
+            long startupTime = Math.max(1, Math.round((now - startNanos) / 1e6));
+            Log.i(TAG, "Streaming startup time measured: " + startupTime + " ms after "
+                    + samples + " samples, first frame from " + (decoding ? "decoder" : "position"));
+            Listener done = listener;
+            cancel(done);
+            done.onStartup(startupTime);
+            return;
+        }
+
+        if (now - startNanos >= MAX_PROBE_MS * 1000000L) {
+            Log.w(TAG, "No first frame within " + MAX_PROBE_MS + " ms, giving up");
+            cancel(null);
+            return;
+        }
+        handler.postDelayed(probe, PROBE_INTERVAL_MS);
+    }
+}
@@ -1,24 +1,16 @@
 package com.opensync.app;
 
 import android.util.Log;
-import android.os.Build;
-import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.media.session.MediaController;
 import android.media.session.MediaSessionManager;
 import android.media.session.PlaybackState;
-import android.media.MediaMetadata;
-import android.os.Build;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.net.TrafficStats;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.json.JSONException;
 import org.json.JSONArray;
@@ -29,7 +21,7 @@ public class OpenSyncStreaming {
     private static Context context;
 
     private MediaSessionManager mediaSessionManager;
-    private MediaController mediaController;
+    private final OpenSyncVdecStatus vdecStatus = new OpenSyncVdecStatus();
 
     public OpenSyncStreaming(Context context) {
         OpenSyncStreaming.context = context;
@@ -37,172 +29,96 @@ public class OpenSyncStreaming {
     }
 
     public void osandroidStreamingGet(JSONObject jsonObject) throws JSONException {
-        String appName = getPlayingVideoAppName(context);
-
-        Log.i(TAG, "APP: " + appName);
-        packResponseJson(jsonObject, "app_name", appName);
-
-        mediaController = isAppPlayingVideo(appName);
-        if (mediaController != null) {
-            MediaController.PlaybackInfo playbackInfo = mediaController.getPlaybackInfo();
-            PlaybackState playbackState = mediaController.getPlaybackState();
-            MediaMetadata metaData = mediaController.getMetadata();
-
-            if (metaData != null) {
-                /* Title/Channel */
-                String title = metaData.getString(MediaMetadata.METADATA_KEY_TITLE);
-                Log.d(TAG, "Title/Channel: " + title);
-                packResponseJson(jsonObject, "title_channel", title);
-
-                /* Playback duration seconds */
-                long total_duration = metaData.getLong(MediaMetadata.METADATA_KEY_DURATION);
-                Log.d(TAG, "Total Video Duration(ms): " + total_duration);
-                packResponseJson(jsonObject, "total_duration", total_duration);
-            } else {
-                Log.w(TAG, "MediaMetadata is null");
-            }
-
-            /* Video Resolution */
-            int resol_width = (int) parseAmlVdecStatus("frame width", false);
-            int resol_height = (int) parseAmlVdecStatus("frame height", false);
-            Log.d(TAG, "Video Resolution: " + resol_width + "*" + resol_height);
-            packResponseJson(jsonObject, "resol_width", resol_width);
-            packResponseJson(jsonObject, "resol_height", resol_height);
-
-            /* Video frame rate */
-            int frame_rate = (int) parseAmlVdecStatus("frame rate", false);
-            Log.d(TAG, "Frame Rate: " + frame_rate);
-            packResponseJson(jsonObject, "frame_rate", frame_rate);
-
-            /* Frames Count */
-            int frame_count = (int) parseAmlVdecStatus("frame count", false);
-            Log.d(TAG, "Frame Count: " + frame_count);
-            packResponseJson(jsonObject, "frame_count", frame_count);
-
-            /* Dropped Frames */
-            int dropped_frames = (int) parseAmlVdecStatus("drop count", false);
-            Log.d(TAG, "Dropped Frames: " + dropped_frames);
-            packResponseJson(jsonObject, "dropped_frames", dropped_frames);
-
-            /* Error Frames */
-            int error_frames = (int) parseAmlVdecStatus("fra err count", false);
-            Log.d(TAG, "Error Frames: " + error_frames);
-            packResponseJson(jsonObject, "error_frames", error_frames);
-
-            /* Render Time (ms) */
-
-            /* Startup Time */
-            long startupTime = OpenSyncStreamingEvent.mStartupTime;
-            Log.d(TAG, "Startup Time: " + startupTime);
-            packResponseJson(jsonObject, "start_time", startupTime);
-
-            /* TX-RX Byte */
-            PackageManager packageManager = context.getPackageManager();
-            try {
-                ApplicationInfo appInfo = packageManager.getApplicationInfo(appName, 0);
-                long txBytes = TrafficStats.getUidTxBytes(appInfo.uid);
-                long rxBytes = TrafficStats.getUidRxBytes(appInfo.uid);
-                Log.d(TAG, "txBytes: " + txBytes);
-                Log.d(TAG, "rxBytes: " + rxBytes);
-                packResponseJson(jsonObject, "tx_bytes", txBytes);
-                packResponseJson(jsonObject, "rx_bytes", rxBytes);
-            } catch (NameNotFoundException e) {
-                e.printStackTrace();
-            }
-
-            /* Audio bit rate */
-
-            /* Video bit rate */
-            int video_bit_rate = (int) parseAmlVdecStatus("bit rate", false);
-            Log.d(TAG, "Video Bitrate: " + video_bit_rate);
-            packResponseJson(jsonObject, "video_bit_rate", video_bit_rate);
-
-            /* Audio Sample Rate */
-
-            /* Codec */
-            String codec = (String) parseAmlVdecStatus("device name", true);
-            Log.d(TAG, "Codec: " + codec);
-            packResponseJson(jsonObject, "codec", codec);
-
-            /* Playback */
-            if (playbackInfo != null) {
-                Log.d(TAG, "Playback Info: " + playbackInfo.toString());
-                /* Volume */
-                int max_vol = playbackInfo.getMaxVolume();
-                int cur_vol = playbackInfo.getCurrentVolume();
-                int vol_percent = (cur_vol / max_vol) * 100;
-                Log.d(TAG, "Current Volume(%): " + vol_percent);
-                packResponseJson(jsonObject, "volume", vol_percent);
-            }
-
-            if (playbackState != null) {
-                Log.d(TAG, "Playback State: " + playbackState.toString());
-                /* Video playback speed */
-                float speed = playbackState.getPlaybackSpeed();
-                Log.d(TAG, "Playback Speed: " + speed);
-                packResponseJson(jsonObject, "play_speed", speed);
-
-                /* State Flag */
-                int pb_state = playbackState.getState();
-                Log.d(TAG, "Playback State Flag: " + pb_state);
-                packResponseJson(jsonObject, "state", pb_state);
-
-                /* Realtime Duration */
-                long duration = playbackState.getPosition();
-                Log.d(TAG, "Realtime Duration(ms): " + duration);
-                packResponseJson(jsonObject, "duration", duration);
-
-                /* Video Buffering time (ms) */
-                long buffering_time = playbackState.getBufferedPosition();
-                Log.d(TAG, "Playback Buffering time: " + buffering_time);
-                packResponseJson(jsonObject, "buffering_time", buffering_time);
+        List<OpenSyncStreamingSession> sessions = getSessions();
+        OpenSyncStreamingSession primary = getPrimarySession(sessions);
+        JSONArray sessionsArray = new JSONArray();
+        for (OpenSyncStreamingSession session : sessions) {
+            JSONObject sessionInfo = new JSONObject();
+            session.fillInfo(sessionInfo, context);
+            sessionsArray.put(sessionInfo);
+        }
 
-                /* Error */
-                CharSequence error = playbackState.getErrorMessage();
-                if (error != null) {
-                    Log.d(TAG, "Playback Error: " + error);
-                    packResponseJson(jsonObject, "error", error);
-                }
-                fillError(jsonObject, "200", "");
-            } else {
-                Log.w(TAG, "PlaybackState is null");
-            }
-        } else {
+        if (primary == null) {
             packResponseJson(jsonObject, "state", PlaybackState.STATE_NONE);
+            jsonObject.getJSONArray("params").getJSONObject(0).put("sessions", sessionsArray);
             fillError(jsonObject, "404", "APP is not playing back.");
             packResponseJson(jsonObject, "error", "APP is not playing back.");
             return;
         }
-    }
 
-    private static Object parseAmlVdecStatus(String key, boolean asString) {
-        String filePath = "/sys/class/vdec/vdec_status";
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.contains(key)) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2) {
-                        String value = parts[1].trim();
-                        if (asString) {
-                            return value;
-                        } else {
-                            value = value.replaceAll("[^0-9]", "");
-                            if (!value.isEmpty()) {
-                                return Integer.parseInt(value);
-                            } else {
-                                Log.e(TAG, "AmlVdec parse failed: " + value);
-                                return 0;
-                            }
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        String appName = primary.getPackageName();
+        Log.i(TAG, "APP: " + appName + ", " + sessions.size() + " session(s)");
+        packResponseJson(jsonObject, "app_name", appName);
+        JSONObject params = jsonObject.getJSONArray("params").getJSONObject(0);
+        params.put("sessions", sessionsArray);
+
+        /* Media session fields of the primary session, the same as in sessions */
+        JSONObject streamingInfo = params.getJSONObject("streaming_info");
+        primary.fillInfo(streamingInfo, context);
+        Log.d(TAG, "Streaming Info: " + streamingInfo);
+
+        /* Decoder stats, all from one snapshot of vdec_status */
+        vdecStatus.read();
+
+        /* Video Resolution */
+        int resol_width = vdecStatus.getWidth();
+        int resol_height = vdecStatus.getHeight();
+        Log.d(TAG, "Video Resolution: " + resol_width + "*" + resol_height);
+        packResponseJson(jsonObject, "resol_width", resol_width);
+        packResponseJson(jsonObject, "resol_height", resol_height);
+
+        /* Video frame rate */
+        int frame_rate = vdecStatus.getFrameRate();
+        Log.d(TAG, "Frame Rate: " + frame_rate);
+        packResponseJson(jsonObject, "frame_rate", frame_rate);
+
+        /* Frames Count */
+        int frame_count = vdecStatus.getFrameCount();
+        Log.d(TAG, "Frame Count: " + frame_count);
+        packResponseJson(jsonObject, "frame_count", frame_count);
+
+        /* Dropped Frames */
+        int dropped_frames = vdecStatus.getDropCount();
+        Log.d(TAG, "Dropped Frames: " + dropped_frames);
+        packResponseJson(jsonObject, "dropped_frames", dropped_frames);
+
+        /* Error Frames */
+        int error_frames = vdecStatus.getErrorCount();
+        Log.d(TAG, "Error Frames: " + error_frames);
+        packResponseJson(jsonObject, "error_frames", error_frames);
+
+        /* Audio bit rate */
+
+        /* Video bit rate */
+        int video_bit_rate = vdecStatus.getBitRate();
+        Log.d(TAG, "Video Bitrate: " + video_bit_rate);
+        packResponseJson(jsonObject, "video_bit_rate", video_bit_rate);
+
+        /* Audio Sample Rate */
+
+        /* Codec */
+        String codec = vdecStatus.getCodec();
+        Log.d(TAG, "Codec: " + codec);
+        packResponseJson(jsonObject, "codec", codec);
+
+        /* Rates over the sampler window, absent until it covers an interval */
+        OpenSyncStreamingSampler sampler = OpenSyncStreamingSampler.getInstance();
+        OpenSyncStreamingSampler.Window window = sampler != null ? sampler.getWindow() : null;
+        if (window != null) {
+            Log.d(TAG, "Window(ms): " + window.durationMs + ", fps: " + window.fps
+                    + ", drops/s: " + window.dropsPerSec + ", errors/s: " + window.errorsPerSec);
+            packResponseJson(jsonObject, "window_ms", window.durationMs);
+            packResponseJson(jsonObject, "window_samples", window.samples);
+            packResponseJson(jsonObject, "window_fps", window.fps);
+            packResponseJson(jsonObject, "window_fps_min", window.fpsMin);
+            packResponseJson(jsonObject, "window_drops_per_sec", window.dropsPerSec);
+            packResponseJson(jsonObject, "window_errors_per_sec", window.errorsPerSec);
+            packResponseJson(jsonObject, "window_bit_rate_min", window.bitRateMin);
+            packResponseJson(jsonObject, "window_bit_rate_avg", window.bitRateAvg);
+            packResponseJson(jsonObject, "window_bit_rate_max", window.bitRateMax);
         }
 
-        return asString ? null : 0;
+        fillError(jsonObject, "200", "");
     }
 
     public static JSONObject packResponseJson(JSONObject inputJson, String key, Object value) throws JSONException {
@@ -238,40 +154,38 @@ public class OpenSyncStreaming {
         return;
     }
 
-    private static String getPlayingVideoAppName(Context context) {
-        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        if (am != null) {
-            List<ActivityManager.RunningTaskInfo> runningTasks = am.getRunningTasks(1);
-            if (runningTasks != null && !runningTasks.isEmpty()) {
-                return runningTasks.get(0).topActivity.getPackageName();
+    /* All tracked sessions, or the active ones right now when tracking is not running */
+    private List<OpenSyncStreamingSession> getSessions() {
+        List<OpenSyncStreamingSession> sessions = new ArrayList<>();
+        OpenSyncStreamingEvent streamingEvent = OpenSyncStreamingEvent.getInstance();
+        if (streamingEvent != null) {
+            sessions.addAll(streamingEvent.getSessions());
+        } else if (mediaSessionManager != null) {
+            List<MediaController> controllers =
+                    mediaSessionManager.getActiveSessions(new ComponentName(context, OpenSyncStreaming.class));
+            Set<String> packages = new HashSet<>();
+            for (MediaController controller : controllers != null ? controllers : new ArrayList<MediaController>()) {
+                if (packages.add(controller.getPackageName())) {
+                    sessions.add(new OpenSyncStreamingSession(controller.getPackageName(), controller));
+                }
             }
         }
-        return null;
+        return sessions;
     }
 
-    private MediaController isAppPlayingVideo(String packageName) {
-        if (mediaSessionManager != null) {
-            List<MediaController> controllers = mediaSessionManager
-                    .getActiveSessions(new ComponentName(context, OpenSyncStreaming.class));
-
-            for (MediaController controller : controllers) {
-                if (controller != null && controller.getPackageName().equals(packageName)) {
-                    Log.d(TAG, "Media Session: " + controller.getPackageName());
-                    PlaybackState pbs = controller.getPlaybackState();
-                    if (pbs != null) {
-                        int state = pbs.getState();
-                        if (state != PlaybackState.STATE_NONE &&
-                                state != PlaybackState.STATE_STOPPED) {
-                            Log.d(TAG, "PlaybackState is " + state);
-                            return controller;
-                        }
-                    } else {
-                        Log.w(TAG, "PlaybackState is null");
-                        return controller;
-                    }
-                }
+    /* The session whose playback started or changed last, preferring playing ones */
+    private static OpenSyncStreamingSession getPrimarySession(List<OpenSyncStreamingSession> sessions) {
+        OpenSyncStreamingSession primary = null;
+        for (OpenSyncStreamingSession session : sessions) {
+            if (!session.isActive()) {
+                continue;
+            }
+            if (primary == null || (session.isPlaying() && !primary.isPlaying())
+                    || (session.isPlaying() == primary.isPlaying()
+                        && session.getStateChangedNanos() > primary.getStateChangedNanos())) {
+                primary = session;
             }
         }
-        return null;
+        return primary;
     }
 }
@@ -0,0 +1,194 @@
+package com.opensync.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Builds osandroid_streaming_event from the tracked sessions and publishes
+ * only what changed since the last event of the same session:
+ *
+ *   {"streaming_delta": {"app_name": ..., "version": n, "keyframe": false,
+ *                        "fields": {changed keys}, "removed": [keys]}}
+ *
+ * version counts the events of the session. A keyframe carries all fields,
+ * it is sent for a new session, every KEYFRAME_INTERVAL_MS while the session
+ * is PLAYING or BUFFERING and after KEYFRAME_EVERY deltas, so a subscriber
+ * that missed a version resyncs at the next one. A paused or idle session
+ * sends nothing until its playback changes. A session that goes away gets a
+ * last event with "ended": true. Nothing is published when no field changed.
+ * All work happens on the delta thread, not on the main thread.
+ */
+public class OpenSyncStreamingDelta {
+    private static final String TAG = "OpenSync StreamingDelta";
+    public static final String API = "osandroid_streaming_event";
+    private static final long KEYFRAME_INTERVAL_MS = 60000;
+    private static final int KEYFRAME_EVERY = 32;
+
+    private final Context context;
+    private final OpenSyncPublisher publisher;
+    private final HandlerThread thread;
+    private final Handler handler;
+    /* Only touched on the delta thread */
+    private final Map<String, State> states = new HashMap<>();
+
+    private static class State {
+        JSONObject fields;
+        long version;
+        long keyframeMs;
+        int deltas;
+    }
+
+    private final Runnable keyframes = new Runnable() {
+        @Override
+        public void run() {
+            update(null, OpenSyncTimestamps.now());
+        }
+    };
+
+    public OpenSyncStreamingDelta(Context context, OpenSyncPublisher publisher) {
+        this.context = context;
+        this.publisher = publisher;
+        thread = new HandlerThread("OpenSyncStreamingDelta");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /* A playback change of packageName, null to only check all sessions */
+    public void post(String packageName, long srcNanos) {
+        handler.post(() -> update(packageName, srcNanos));
+    }
+
+    public void stop() {
+        thread.quitSafely();
+    }
+
+    private void update(String packageName, long srcNanos) {
+        handler.removeCallbacks(keyframes);
+        long now = SystemClock.elapsedRealtime();
+
+        Map<String, OpenSyncStreamingSession> sessions = new HashMap<>();
+        OpenSyncStreamingEvent streamingEvent = OpenSyncStreamingEvent.getInstance();
+        if (streamingEvent != null) {
+            for (OpenSyncStreamingSession session : streamingEvent.getSessions()) {
+                sessions.put(session.getPackageName(), session);
+            }
+        }
+
+        Iterator<Map.Entry<String, State>> iterator = states.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, State> entry = iterator.next();
+            if (!sessions.containsKey(entry.getKey())) {
+                publishEnded(entry.getKey(), entry.getValue(), srcNanos);
+                iterator.remove();
+            }
+        }
+
+        for (OpenSyncStreamingSession session : sessions.values()) {
+            State state = states.get(session.getPackageName());
+            boolean keyframeDue = state == null
+                    || (session.isPlaying() && now - state.keyframeMs >= KEYFRAME_INTERVAL_MS);
+            if (keyframeDue || session.getPackageName().equals(packageName)) {
+                try {
+                    publish(session, state, now, srcNanos);
+                } catch (JSONException e) {
+                    Log.e(TAG, session.getPackageName() + ": build JSON failed");
+                }
+            }
+        }
+
+        /* Periodic keyframes only for playing sessions, a playback change reschedules */
+        long next = Long.MAX_VALUE;
+        for (OpenSyncStreamingSession session : sessions.values()) {
+            State state = states.get(session.getPackageName());
+            if (state != null && session.isPlaying()) {
+                next = Math.min(next, state.keyframeMs + KEYFRAME_INTERVAL_MS - now);
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            handler.postDelayed(keyframes, Math.max(0, next));
+        }
+    }
+
+    private void publish(OpenSyncStreamingSession session, State state, long now, long srcNanos)
+            throws JSONException {
+        JSONObject fields = new JSONObject();
+        session.fillInfo(fields, context);
+
+        if (state == null) {
+            state = new State();
+            states.put(session.getPackageName(), state);
+        }
+        boolean keyframe = state.fields == null || now - state.keyframeMs >= KEYFRAME_INTERVAL_MS
+                || state.deltas >= KEYFRAME_EVERY;
+
+        JSONObject delta = new JSONObject();
+        delta.put("app_name", session.getPackageName());
+        if (keyframe) {
+            delta.put("fields", fields);
+            state.keyframeMs = now;
+            state.deltas = 0;
+        } else {
+            JSONObject changed = new JSONObject();
+            Iterator<String> keys = fields.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!Objects.equals(fields.get(key), state.fields.opt(key))) {
+                    changed.put(key, fields.get(key));
+                }
+            }
+            JSONArray removed = new JSONArray();
+            keys = state.fields.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!fields.has(key)) {
+                    removed.put(key);
+                }
+            }
+            if (changed.length() == 0 && removed.length() == 0) {
+                return;
+            }
+            delta.put("fields", changed);
+            if (removed.length() > 0) {
+                delta.put("removed", removed);
+            }
+            state.deltas++;
+        }
+        state.fields = fields;
+        delta.put("version", ++state.version);
+        delta.put("keyframe", keyframe);
+        send(delta, srcNanos);
+    }
+
+    private void publishEnded(String packageName, State state, long srcNanos) {
+        try {
+            JSONObject delta = new JSONObject();
+            delta.put("app_name", packageName);
+            delta.put("version", ++state.version);
+            delta.put("keyframe", false);
+            delta.put("ended", true);
+            send(delta, srcNanos);
+        } catch (JSONException e) {
+            Log.e(TAG, packageName + ": build JSON failed");
+        }
+    }
+
+    private void send(JSONObject delta, long srcNanos) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("api", API);
+        event.put("params", new JSONArray().put(new JSONObject().put("streaming_delta", delta)));
+        Log.d(TAG, "Publish " + delta);
+        publisher.publish(event, srcNanos);
+    }
+}
@@ -1,45 +1,47 @@
 package com.opensync.app;
 
 import android.util.Log;
-import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.app.ActivityManager;
-import android.content.Intent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.media.session.MediaController;
+import android.media.session.MediaSession;
 import android.media.session.MediaSessionManager;
 import android.media.session.PlaybackState;
-import android.media.MediaMetadata;
-import android.text.TextUtils;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.greenrobot.eventbus.EventBus;
 
+/*
+ * Tracks the active media sessions from OnActiveSessionsChangedListener,
+ * nothing runs while the session list and playback states do not change.
+ * Each session token gets its own callback, and each app its own
+ * OpenSyncStreamingSession, shared by the tokens of that app. The token map
+ * lives on the handler thread, the package map is read by IPC workers.
+ */
 public class OpenSyncStreamingEvent extends MediaController.Callback {
     private final MediaSessionManager mMediaSessionManager;
     private static Context mContext;
-    private List<MediaController> sessions = new ArrayList<>();
-    private Timer timer;
+    private static volatile OpenSyncStreamingEvent instance;
+    private final Map<MediaSession.Token, SessionCallback> callbacks = new HashMap<>();
+    private final Map<String, OpenSyncStreamingSession> sessions = new ConcurrentHashMap<>();
     private HandlerThread handlerThread;
     private Handler handler;
 
-    private PlaybackState playbackState;
-
-    private long mesureStartupTs = 0;
-    public static long mStartupTime = 0;
-    private boolean doesMeasureStartup = false;
-    private long playbackPosition = 0;
+    private OpenSyncStartupProbe startupProbe;
 
     private String TAG = "OpenSyncStreamingEvent";
 
+    private final MediaSessionManager.OnActiveSessionsChangedListener sessionsListener =
+            this::updateSessions;
+
     OpenSyncStreamingEvent(Context context) {
         mContext = context;
 
@@ -47,135 +49,189 @@ public class OpenSyncStreamingEvent extends MediaController.Callback {
                 Context.MEDIA_SESSION_SERVICE);
 
         Log.i(TAG, "Init");
-        initTimer();
+        initHandler();
+        instance = this;
+    }
+
+    public static OpenSyncStreamingEvent getInstance() {
+        return instance;
     }
 
-    private void initTimer() {
+    /* Live view of the sessions by package, safe to iterate from any thread */
+    public Collection<OpenSyncStreamingSession> getSessions() {
+        return sessions.values();
+    }
+
+    private void initHandler() {
         handlerThread = new HandlerThread("OpenSyncStreamingEventThread");
         handlerThread.start();
         handler = new Handler(handlerThread.getLooper());
+        startupProbe = new OpenSyncStartupProbe(handler);
+
+        if (mMediaSessionManager == null) {
+            Log.e(TAG, "MediaSessionManager is not available");
+            return;
+        }
 
-        timer = new Timer();
-        TimerTask task = new TimerTask() {
+        handler.post(new Runnable() {
             @Override
             public void run() {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        updateMediaControllerCallback();
-                        if (doesMeasureStartup) {
-                            if (getPlaybackPosition() > playbackPosition) {
-                                doesMeasureStartup = false;
-                                mStartupTime = new Date().getTime() - mesureStartupTs;
-                                Log.i(TAG, "Streaming startup time measured: " + mStartupTime);
-                                EventBus.getDefault().post(playbackState);
-                            }
-                        }
-                    }
-                });
+                ComponentName component = new ComponentName(mContext, OpenSyncStreamingEvent.class);
+                mMediaSessionManager.addOnActiveSessionsChangedListener(sessionsListener, component, handler);
+                /* The listener only reports changes, pick up the sessions already active */
+                updateSessions(mMediaSessionManager.getActiveSessions(component));
             }
-        };
-
-        timer.schedule(task, 0, 1000);
+        });
     }
 
-    public void stopTimer() {
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+    public void stop() {
+        if (instance == this) {
+            instance = null;
+        }
+
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startupProbe.cancel(null);
+                    if (mMediaSessionManager != null) {
+                        mMediaSessionManager.removeOnActiveSessionsChangedListener(sessionsListener);
+                    }
+                    unregisterCallbacks();
+                }
+            });
         }
 
         if (handlerThread != null) {
-            handlerThread.quit();
+            handlerThread.quitSafely();
             handlerThread = null;
         }
     }
 
-    private int getPlaybackPosition() {
-        for (MediaController aController : sessions) {
-            PlaybackState  playbackState = aController.getPlaybackState();
-            return (int) playbackState.getPosition();
+    private void updateSessions(List<MediaController> controllers) {
+        Map<MediaSession.Token, MediaController> active = new HashMap<>();
+        if (controllers != null) {
+            for (MediaController aController : controllers) {
+                active.put(aController.getSessionToken(), aController);
+            }
         }
-        return 0;
-    }
 
-    public void updateMediaControllerCallback() {
-        if (mMediaSessionManager != null) {
-            List<MediaController> newSessions =
-                mMediaSessionManager.getActiveSessions
-                (new ComponentName(mContext, OpenSyncStreamingEvent.class));
-
-            Iterator<MediaController> iterator = sessions.iterator();
-            while (iterator.hasNext()) {
-                MediaController existingController = iterator.next();
-                if (!containsController(newSessions, existingController)) {
-                    existingController.unregisterCallback(mMediaListener);
-                    Log.d(TAG, "Media Session Stop: " + existingController.getPackageName());
-                    iterator.remove();
-                }
+        Iterator<Map.Entry<MediaSession.Token, SessionCallback>> iterator = callbacks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<MediaSession.Token, SessionCallback> entry = iterator.next();
+            if (!active.containsKey(entry.getKey())) {
+                SessionCallback callback = entry.getValue();
+                callback.controller.unregisterCallback(callback);
+                startupProbe.cancel(callback);
+                Log.d(TAG, "Media Session Stop: " + callback.session.getPackageName());
+                iterator.remove();
             }
+        }
+
+        for (Map.Entry<MediaSession.Token, MediaController> entry : active.entrySet()) {
+            if (!callbacks.containsKey(entry.getKey())) {
+                MediaController aController = entry.getValue();
+                String packageName = aController.getPackageName();
+                Log.d(TAG, "New Media Session: " + packageName);
+
+                OpenSyncStreamingSession session = sessions.get(packageName);
+                if (session == null) {
+                    session = new OpenSyncStreamingSession(packageName, aController);
+                    sessions.put(packageName, session);
+                } else {
+                    /* The newest session of an app is the one it plays on */
+                    session.setController(aController);
+                }
+
+                SessionCallback callback = new SessionCallback(session, aController);
+                aController.registerCallback(callback, handler);
+                callbacks.put(entry.getKey(), callback);
 
-            for (MediaController aController : newSessions) {
-                if (!containsController(sessions, aController)) {
-                    Log.d(TAG, "New Media Session: " + aController.getPackageName());
-                    aController.registerCallback(mMediaListener);
-                    sessions.add(aController);
+                /* No callback comes for the state a session already has */
+                if (session.isPlaying()) {
+                    EventBus.getDefault().post(new OpenSyncPlaybackStateEvent(packageName, session.getPlaybackState()));
                 }
             }
         }
-    }
 
-    private boolean containsController(List<MediaController> controllers, MediaController controller) {
-        for (MediaController c : controllers) {
-            if (TextUtils.equals(c.getPackageName(), controller.getPackageName())) {
-                return true;
+        /* Drop the apps left without any session */
+        Iterator<String> packages = sessions.keySet().iterator();
+        while (packages.hasNext()) {
+            String packageName = packages.next();
+            boolean hasSession = false;
+            for (SessionCallback callback : callbacks.values()) {
+                if (callback.session.getPackageName().equals(packageName)) {
+                    hasSession = true;
+                    break;
+                }
+            }
+            if (!hasSession) {
+                packages.remove();
+                EventBus.getDefault().post(new OpenSyncPlaybackStateEvent(packageName, null));
             }
         }
-        return false;
     }
 
     private void unregisterCallbacks() {
-        for (MediaController aController : sessions) {
-            aController.unregisterCallback(mMediaListener);
+        for (SessionCallback callback : callbacks.values()) {
+            callback.controller.unregisterCallback(callback);
         }
+        callbacks.clear();
         sessions.clear();
     }
 
-    private final MediaController.Callback mMediaListener = new MediaController.Callback() {
+    private class SessionCallback extends MediaController.Callback implements OpenSyncStartupProbe.Listener {
+        final OpenSyncStreamingSession session;
+        final MediaController controller;
         private int lastState = PlaybackState.STATE_NONE;
         private int curState = PlaybackState.STATE_NONE;
+        private PlaybackState playbackState;
+
+        SessionCallback(OpenSyncStreamingSession session, MediaController controller) {
+            this.session = session;
+            this.controller = controller;
+        }
 
         @Override
         public void onPlaybackStateChanged(PlaybackState state) {
+            long changedNanos = OpenSyncTimestamps.now();
+            if (state == null) {
+                return;
+            }
             playbackState = state;
             curState = playbackState.getState();
+            session.setController(controller);
+            session.setPlaybackState(state, changedNanos);
+            session.getQoe().onState(curState, changedNanos);
 
             if (curState != lastState) {
-                Log.i(TAG, "Playback StateChanged: "
+                Log.i(TAG, session.getPackageName() + " Playback StateChanged: "
                         + getStateName(lastState)
                         + " -> "
                         +getStateName(curState));
-                EventBus.getDefault().post(state);
+                EventBus.getDefault().post(new OpenSyncPlaybackStateEvent(session.getPackageName(), state));
 
                 /* Start */
                 if ((lastState == PlaybackState.STATE_NONE   || lastState == PlaybackState.STATE_STOPPED) &&
                     (curState == PlaybackState.STATE_PLAYING || curState == PlaybackState.STATE_BUFFERING)) {
-                    doesMeasureStartup = true;
-                    mesureStartupTs = new Date().getTime();
-                    playbackPosition = getPlaybackPosition();
-                    mStartupTime = 0;
-                    Log.i(TAG, "Streaming start measure startup time");
+                    session.setStartupTime(0);
+                    startupProbe.start(changedNanos, session::getPosition, this);
                 }
-                /* Stop */
-                if (lastState == PlaybackState.STATE_PLAYING &&
-                    (curState == PlaybackState.STATE_NONE || curState == PlaybackState.STATE_STOPPED)) {
-                    doesMeasureStartup = false;
+                /* Stop, also ends a startup that never showed a frame */
+                if (curState == PlaybackState.STATE_NONE || curState == PlaybackState.STATE_STOPPED) {
+                    startupProbe.cancel(this);
                 }
             }
 
             lastState = curState;
         }
 
+        @Override
+        public void onStartup(long startupMs) {
+            session.setStartupTime(startupMs);
+            EventBus.getDefault().post(new OpenSyncPlaybackStateEvent(session.getPackageName(), playbackState));
+        }
+
         private String getStateName(int state) {
             switch (state) {
                 case PlaybackState.STATE_NONE:
@@ -198,5 +254,5 @@ public class OpenSyncStreamingEvent extends MediaController.Callback {
                     return "UNKNOWN_STATE(" + state + ")";
             }
         }
-    };
+    }
 }
@@ -0,0 +1,130 @@
+package com.opensync.app;
+
+import android.media.session.PlaybackState;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Stall analytics of one playback, fed with the playback state transitions of
+ * its session and the decoder bit rate samples. A stall is BUFFERING entered
+ * after the playback was PLAYING, the initial buffering is startup time. It
+ * ends on the next state, whatever it is. A new playback start clears it all.
+ * Updates are a few arithmetic operations under an uncontended lock.
+ */
+public class OpenSyncStreamingQoe {
+    private int state = PlaybackState.STATE_NONE;
+    private long stateNanos;
+    private boolean played;
+
+    private int stallCount;
+    private long stallStartNanos;
+    private long stallNanos;
+    private long stallMaxNanos;
+    private long playingNanos;
+
+    /* Bit rate integrated over the time spent playing */
+    private long bitRate;
+    private long bitRateNanos;
+    private double bitRateIntegral;
+    private long bitRateWeightNanos;
+
+    public synchronized void onState(int newState, long nowNanos) {
+        if (newState == state) {
+            return;
+        }
+
+        boolean start = (state == PlaybackState.STATE_NONE || state == PlaybackState.STATE_STOPPED)
+                && (newState == PlaybackState.STATE_PLAYING || newState == PlaybackState.STATE_BUFFERING);
+        if (start) {
+            reset();
+        } else {
+            leave(nowNanos);
+        }
+
+        if (newState == PlaybackState.STATE_PLAYING) {
+            played = true;
+        } else if (newState == PlaybackState.STATE_BUFFERING && played) {
+            stallCount++;
+            stallStartNanos = nowNanos;
+        }
+        state = newState;
+        stateNanos = nowNanos;
+    }
+
+    /* Close the time spent in the current state */
+    private void leave(long nowNanos) {
+        if (state == PlaybackState.STATE_PLAYING) {
+            playingNanos += nowNanos - stateNanos;
+            addBitRate(nowNanos);
+            bitRateNanos = 0;
+        } else if (stallStartNanos != 0) {
+            long stall = nowNanos - stallStartNanos;
+            stallNanos += stall;
+            stallMaxNanos = Math.max(stallMaxNanos, stall);
+            stallStartNanos = 0;
+        }
+    }
+
+    private void reset() {
+        played = false;
+        stallCount = 0;
+        stallStartNanos = 0;
+        stallNanos = 0;
+        stallMaxNanos = 0;
+        playingNanos = 0;
+        bitRate = 0;
+        bitRateNanos = 0;
+        bitRateIntegral = 0;
+        bitRateWeightNanos = 0;
+    }
+
+    /* Decoder bit rate, only counted while this playback is PLAYING */
+    public synchronized void onBitRate(int kbps, long nowNanos) {
+        if (state != PlaybackState.STATE_PLAYING) {
+            return;
+        }
+        addBitRate(nowNanos);
+        bitRate = kbps;
+        bitRateNanos = nowNanos;
+    }
+
+    private void addBitRate(long nowNanos) {
+        if (bitRateNanos != 0) {
+            long dt = nowNanos - Math.max(bitRateNanos, stateNanos);
+            if (dt > 0) {
+                bitRateIntegral += (double) bitRate * dt;
+                bitRateWeightNanos += dt;
+            }
+        }
+    }
+
+    public synchronized void fillInfo(JSONObject info, long nowNanos) throws JSONException {
+        long stall = stallNanos;
+        long stallMax = stallMaxNanos;
+        if (stallStartNanos != 0) {
+            stall += nowNanos - stallStartNanos;
+            stallMax = Math.max(stallMax, nowNanos - stallStartNanos);
+        }
+        long playing = playingNanos;
+        double integral = bitRateIntegral;
+        long weight = bitRateWeightNanos;
+        if (state == PlaybackState.STATE_PLAYING) {
+            playing += nowNanos - stateNanos;
+            if (bitRateNanos != 0) {
+                long dt = nowNanos - Math.max(bitRateNanos, stateNanos);
+                integral += (double) bitRate * dt;
+                weight += dt;
+            }
+        }
+
+        info.put("stall_count", stallCount);
+        info.put("stall_time", stall / 1000000L);
+        info.put("stall_max", stallMax / 1000000L);
+        info.put("stall_ratio", stall + playing > 0 ? (double) stall / (stall + playing) : 0.0);
+        info.put("play_time", playing / 1000000L);
+        if (weight > 0) {
+            info.put("bit_rate_time_avg", Math.round(integral / weight));
+        }
+    }
+}
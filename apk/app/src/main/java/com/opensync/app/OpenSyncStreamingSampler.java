@@ -0,0 +1,219 @@
+package com.opensync.app;
+
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/*
+ * Samples the decoder counters at a fixed period into a ring of primitives,
+ * so osandroid_streaming_get can report rates over the last window instead of
+ * only the cumulative counters at the time of the poll. The window restarts
+ * when the decoder goes away or its counters go backwards, i.e. a new stream.
+ *
+ * Sampling only runs while a session is PLAYING or BUFFERING: a playback
+ * state change into either starts it, and it stops at the first sample no
+ * session is playing anymore. Each start opens a new window.
+ */
+public class OpenSyncStreamingSampler {
+    private static final String TAG = "OpenSync StreamingSampler";
+    public static final int WINDOW_SAMPLES = 60;
+
+    private static volatile OpenSyncStreamingSampler instance;
+
+    private final long periodMs;
+    private final HandlerThread thread;
+    private final Handler handler;
+    /* Only touched on the sampler thread */
+    private final OpenSyncVdecStatus vdecStatus = new OpenSyncVdecStatus();
+    private boolean sampling;
+
+    /* Ring of samples, guarded by this */
+    private final long[] timeNs = new long[WINDOW_SAMPLES];
+    private final long[] frames = new long[WINDOW_SAMPLES];
+    private final long[] drops = new long[WINDOW_SAMPLES];
+    private final long[] errors = new long[WINDOW_SAMPLES];
+    private final int[] bitRate = new int[WINDOW_SAMPLES];
+    private int next;
+    private int count;
+    private final OpenSyncStreamingSummary summary = new OpenSyncStreamingSummary();
+
+    public static class Window {
+        public long durationMs;
+        public int samples;
+        public double fps;
+        /* Lowest frame rate of a single sampling interval */
+        public double fpsMin;
+        public double dropsPerSec;
+        public double errorsPerSec;
+        public int bitRateMin;
+        public int bitRateAvg;
+        public int bitRateMax;
+    }
+
+    private final Runnable sample = new Runnable() {
+        @Override
+        public void run() {
+            if (sample()) {
+                handler.postDelayed(this, periodMs);
+            } else {
+                sampling = false;
+                Log.d(TAG, "No session playing, sampling stopped");
+            }
+        }
+    };
+
+    public OpenSyncStreamingSampler(long periodMs) {
+        this.periodMs = periodMs;
+        thread = new HandlerThread("OpenSyncStreamingSampler");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        instance = this;
+        Log.i(TAG, "Sampling every " + periodMs + " ms while playing, window of " + WINDOW_SAMPLES + " samples");
+        /* A session may already be playing */
+        handler.post(this::start);
+    }
+
+    public static OpenSyncStreamingSampler getInstance() {
+        return instance;
+    }
+
+    public OpenSyncStreamingSummary getSummary() {
+        return summary;
+    }
+
+    /* A playback state change of any session, starts sampling if it plays */
+    public void onPlaybackState(PlaybackState state) {
+        if (state != null && (state.getState() == PlaybackState.STATE_PLAYING
+                || state.getState() == PlaybackState.STATE_BUFFERING)) {
+            handler.post(this::start);
+        }
+    }
+
+    private void start() {
+        if (sampling || !isAnyPlaying()) {
+            return;
+        }
+        sampling = true;
+        /* The time spent not playing is no interval of the new window */
+        synchronized (this) {
+            count = 0;
+        }
+        Log.d(TAG, "Session playing, sampling started");
+        sample.run();
+    }
+
+    private static boolean isAnyPlaying() {
+        OpenSyncStreamingEvent streamingEvent = OpenSyncStreamingEvent.getInstance();
+        if (streamingEvent == null) {
+            return false;
+        }
+        for (OpenSyncStreamingSession session : streamingEvent.getSessions()) {
+            if (session.isPlaying()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* One sample, returns whether a session is still playing */
+    private boolean sample() {
+        long now = System.nanoTime();
+        boolean playing = isAnyPlaying();
+        if (!vdecStatus.read()) {
+            synchronized (this) {
+                count = 0;
+            }
+            return playing;
+        }
+
+        synchronized (this) {
+            if (count > 0) {
+                int last = (next + WINDOW_SAMPLES - 1) % WINDOW_SAMPLES;
+                if (vdecStatus.getFrameCount() < frames[last] || vdecStatus.getDropCount() < drops[last]
+                        || vdecStatus.getErrorCount() < errors[last]) {
+                    Log.d(TAG, "Decoder counters restarted, new window");
+                    count = 0;
+                }
+            }
+            timeNs[next] = now;
+            frames[next] = vdecStatus.getFrameCount();
+            drops[next] = vdecStatus.getDropCount();
+            errors[next] = vdecStatus.getErrorCount();
+            bitRate[next] = vdecStatus.getBitRate();
+            int last = next;
+            next = (next + 1) % WINDOW_SAMPLES;
+            count = Math.min(count + 1, WINDOW_SAMPLES);
+
+            /* Paused intervals would pull the percentiles to zero */
+            if (count >= 2 && playing) {
+                int prev = (last + WINDOW_SAMPLES - 1) % WINDOW_SAMPLES;
+                double interval = (timeNs[last] - timeNs[prev]) / 1e9;
+                if (interval > 0) {
+                    summary.record((frames[last] - frames[prev]) / interval,
+                            (drops[last] - drops[prev]) / interval, bitRate[last]);
+                }
+            }
+        }
+
+        /* The decoder is shared, its bit rate goes to the sessions playing */
+        OpenSyncStreamingEvent streamingEvent = OpenSyncStreamingEvent.getInstance();
+        if (streamingEvent != null) {
+            long nowNanos = OpenSyncTimestamps.now();
+            for (OpenSyncStreamingSession session : streamingEvent.getSessions()) {
+                session.getQoe().onBitRate(vdecStatus.getBitRate(), nowNanos);
+            }
+        }
+        return playing;
+    }
+
+    /* Aggregates over the current window, null until it spans one interval */
+    public synchronized Window getWindow() {
+        if (count < 2) {
+            return null;
+        }
+
+        int first = (next + WINDOW_SAMPLES - count) % WINDOW_SAMPLES;
+        int last = (next + WINDOW_SAMPLES - 1) % WINDOW_SAMPLES;
+        double seconds = (timeNs[last] - timeNs[first]) / 1e9;
+        if (seconds <= 0) {
+            return null;
+        }
+
+        Window w = new Window();
+        w.samples = count;
+        w.durationMs = (timeNs[last] - timeNs[first]) / 1000000L;
+        w.fps = (frames[last] - frames[first]) / seconds;
+        w.dropsPerSec = (drops[last] - drops[first]) / seconds;
+        w.errorsPerSec = (errors[last] - errors[first]) / seconds;
+
+        w.fpsMin = Double.MAX_VALUE;
+        w.bitRateMin = Integer.MAX_VALUE;
+        long bitRateSum = 0;
+        for (int n = 0, i = first; n < count; n++, i = (i + 1) % WINDOW_SAMPLES) {
+            w.bitRateMin = Math.min(w.bitRateMin, bitRate[i]);
+            w.bitRateMax = Math.max(w.bitRateMax, bitRate[i]);
+            bitRateSum += bitRate[i];
+            if (n > 0) {
+                int prev = (i + WINDOW_SAMPLES - 1) % WINDOW_SAMPLES;
+                double interval = (timeNs[i] - timeNs[prev]) / 1e9;
+                if (interval > 0) {
+                    w.fpsMin = Math.min(w.fpsMin, (frames[i] - frames[prev]) / interval);
+                }
+            }
+        }
+        w.bitRateAvg = (int) (bitRateSum / count);
+        if (w.fpsMin == Double.MAX_VALUE) {
+            w.fpsMin = w.fps;
+        }
+        return w;
+    }
+
+    public void stop() {
+        handler.removeCallbacks(sample);
+        thread.quitSafely();
+        if (instance == this) {
+            instance = null;
+        }
+    }
+}
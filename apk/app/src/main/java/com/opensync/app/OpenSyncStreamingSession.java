@@ -0,0 +1,136 @@
+package com.opensync.app;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.PlaybackState;
+import android.net.TrafficStats;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * State of one app's media session. Updated from the MediaController callbacks
+ * on the streaming event thread and read by IPC workers, hence the volatiles.
+ * The keys written by fillInfo() are the ones of streaming_info.
+ */
+public class OpenSyncStreamingSession {
+    private final String packageName;
+    private volatile MediaController controller;
+    /* Last state from the callback, null until the first one arrives */
+    private volatile PlaybackState playbackState;
+    private volatile long stateChangedNanos;
+    /* Startup time in ms of the last playback start, 0 while unknown */
+    private volatile long startupTime;
+    private final OpenSyncStreamingQoe qoe = new OpenSyncStreamingQoe();
+    private int uid = -1;
+
+    public OpenSyncStreamingSession(String packageName, MediaController controller) {
+        this.packageName = packageName;
+        this.controller = controller;
+        this.stateChangedNanos = OpenSyncTimestamps.now();
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public MediaController getController() {
+        return controller;
+    }
+
+    void setController(MediaController controller) {
+        this.controller = controller;
+    }
+
+    public PlaybackState getPlaybackState() {
+        PlaybackState state = playbackState;
+        return state != null ? state : controller.getPlaybackState();
+    }
+
+    void setPlaybackState(PlaybackState state, long changedNanos) {
+        playbackState = state;
+        stateChangedNanos = changedNanos;
+    }
+
+    public long getStateChangedNanos() {
+        return stateChangedNanos;
+    }
+
+    public long getStartupTime() {
+        return startupTime;
+    }
+
+    void setStartupTime(long startupMs) {
+        startupTime = startupMs;
+    }
+
+    public OpenSyncStreamingQoe getQoe() {
+        return qoe;
+    }
+
+    public long getPosition() {
+        PlaybackState state = getPlaybackState();
+        return state != null ? state.getPosition() : 0;
+    }
+
+    /* Same rule as before: a session without state counts as active */
+    public boolean isActive() {
+        PlaybackState state = getPlaybackState();
+        return state == null || (state.getState() != PlaybackState.STATE_NONE
+                && state.getState() != PlaybackState.STATE_STOPPED);
+    }
+
+    public boolean isPlaying() {
+        PlaybackState state = getPlaybackState();
+        return state != null && (state.getState() == PlaybackState.STATE_PLAYING
+                || state.getState() == PlaybackState.STATE_BUFFERING);
+    }
+
+    public void fillInfo(JSONObject info, Context context) throws JSONException {
+        MediaController controller = this.controller;
+        info.put("app_name", packageName);
+
+        MediaMetadata metaData = controller.getMetadata();
+        if (metaData != null) {
+            info.put("title_channel", metaData.getString(MediaMetadata.METADATA_KEY_TITLE));
+            info.put("total_duration", metaData.getLong(MediaMetadata.METADATA_KEY_DURATION));
+        }
+
+        info.put("start_time", startupTime);
+
+        if (uid < 0) {
+            try {
+                uid = context.getPackageManager().getApplicationInfo(packageName, 0).uid;
+            } catch (PackageManager.NameNotFoundException e) {
+                uid = 0;
+            }
+        }
+        if (uid > 0) {
+            info.put("tx_bytes", TrafficStats.getUidTxBytes(uid));
+            info.put("rx_bytes", TrafficStats.getUidRxBytes(uid));
+        }
+
+        MediaController.PlaybackInfo playbackInfo = controller.getPlaybackInfo();
+        if (playbackInfo != null && playbackInfo.getMaxVolume() > 0) {
+            info.put("volume", playbackInfo.getCurrentVolume() * 100 / playbackInfo.getMaxVolume());
+        }
+
+        PlaybackState state = getPlaybackState();
+        if (state != null) {
+            info.put("play_speed", state.getPlaybackSpeed());
+            info.put("state", state.getState());
+            info.put("duration", state.getPosition());
+            info.put("buffering_time", state.getBufferedPosition());
+            CharSequence error = state.getErrorMessage();
+            if (error != null) {
+                info.put("error", error.toString());
+            }
+        } else {
+            info.put("state", PlaybackState.STATE_NONE);
+        }
+
+        qoe.fillInfo(info, OpenSyncTimestamps.now());
+    }
+}
@@ -0,0 +1,138 @@
+package com.opensync.app;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/*
+ * Streaming metrics of every sampler interval since the last
+ * osandroid_streaming_summary_get, so a report covers the whole poll interval
+ * and not just the moment of the poll. Only intervals a session played in
+ * are recorded, window_ms still spans the whole poll interval. Each metric
+ * is a log-bucket sketch of fixed size: bucket i holds values up to
+ * MIN_VALUE * GAMMA^i, which keeps percentiles within about 5% of the true
+ * value whatever the sample count.
+ */
+public class OpenSyncStreamingSummary {
+    public static final String API = "osandroid_streaming_summary_get";
+    private static final double GAMMA = 1.1;
+    private static final double MIN_VALUE = 0.01;
+    /* 0.01 up to ~1e6, covers frame rates, drop rates and kbps */
+    private static final int BUCKETS = 200;
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    static class Sketch {
+        private final int[] buckets = new int[BUCKETS];
+        /* Values below MIN_VALUE, i.e. zero drop rates */
+        private int zeros;
+        private int count;
+        private double sum;
+        private double min;
+        private double max;
+
+        void record(double value) {
+            value = Math.max(0, value);
+            if (value < MIN_VALUE) {
+                zeros++;
+            } else {
+                int i = (int) Math.ceil(Math.log(value / MIN_VALUE) / LOG_GAMMA);
+                buckets[Math.min(BUCKETS - 1, i)]++;
+            }
+            min = count == 0 ? value : Math.min(min, value);
+            max = count == 0 ? value : Math.max(max, value);
+            count++;
+            sum += value;
+        }
+
+        void reset() {
+            Arrays.fill(buckets, 0);
+            zeros = 0;
+            count = 0;
+            sum = 0;
+            min = 0;
+            max = 0;
+        }
+
+        /* Geometric middle of the bucket holding the rank, clamped to what was seen */
+        double percentile(int p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = ((long) count * p + 99) / 100;
+            long seen = zeros;
+            if (seen >= rank) {
+                return min;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    double value = MIN_VALUE * Math.pow(GAMMA, i - 0.5);
+                    return Math.max(min, Math.min(max, value));
+                }
+            }
+            return max;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("min", round(min));
+            json.put("max", round(max));
+            json.put("avg", round(count > 0 ? sum / count : 0));
+            json.put("p50", round(percentile(50)));
+            json.put("p90", round(percentile(90)));
+            json.put("p95", round(percentile(95)));
+            json.put("p99", round(percentile(99)));
+
+            /* Non-empty buckets as [upper bound, count], zeros first */
+            JSONArray histogram = new JSONArray();
+            if (zeros > 0) {
+                histogram.put(new JSONArray().put(0).put(zeros));
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i] > 0) {
+                    histogram.put(new JSONArray().put(round(MIN_VALUE * Math.pow(GAMMA, i))).put(buckets[i]));
+                }
+            }
+            json.put("histogram", histogram);
+            return json;
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 100) / 100.0;
+        }
+    }
+
+    private final Sketch bitRate = new Sketch();
+    private final Sketch frameRate = new Sketch();
+    private final Sketch dropRate = new Sketch();
+    private long windowStartMs = SystemClock.elapsedRealtime();
+
+    /* One sampler interval, rates per second and the bit rate in kbps */
+    public synchronized void record(double fps, double dropsPerSec, int kbps) {
+        frameRate.record(fps);
+        dropRate.record(dropsPerSec);
+        bitRate.record(kbps);
+    }
+
+    /* The summary since the last call, then starts a new window */
+    public synchronized JSONObject toJsonAndReset() throws JSONException {
+        long now = SystemClock.elapsedRealtime();
+        JSONObject json = new JSONObject();
+        json.put("window_ms", now - windowStartMs);
+        json.put("samples", frameRate.count);
+        json.put("bit_rate", bitRate.toJson());
+        json.put("frame_rate", frameRate.toJson());
+        json.put("drop_rate", dropRate.toJson());
+
+        bitRate.reset();
+        frameRate.reset();
+        dropRate.reset();
+        windowStartMs = now;
+        return json;
+    }
+}
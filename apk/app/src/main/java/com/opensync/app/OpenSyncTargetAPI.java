@@ -28,7 +28,6 @@ public class OpenSyncTargetAPI {
 
     private Context context;
     private WifiManager wifiManager;
-    private LogUtils logUtils;
     private String osyncOBSSID;
 
     public OpenSyncTargetAPI(Context context) {
@@ -106,7 +105,7 @@ public class OpenSyncTargetAPI {
     public void targetLogPullExt(JSONObject jsonObject) throws JSONException {
         String uploadLocation = null;
         String uploadToken = null;
-        logUtils = new LogUtils(context);
+        LogUtils logUtils = new LogUtils(context);
 
         try {
             JSONObject paramsObject = jsonObject.getJSONObject("params");
@@ -0,0 +1,58 @@
+package com.opensync.app;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Latency stamps carried by events and IPC replies as
+ * "ts":{"src":ns,"enq":ns,"send":ns}. All are elapsedRealtimeNanos(), i.e.
+ * CLOCK_BOOTTIME, which androidm reads on its side with clock_gettime().
+ *
+ *   events:  src = broadcast or callback, enq = OpenSyncPublisher.publish(),
+ *            send = journaled, then handed to the PUB socket or held until
+ *            a subscription matches
+ *   replies: src = request arrival at the IPC server, enq = picked up by a
+ *            worker, send = reply handed back to the server socket
+ */
+public final class OpenSyncTimestamps {
+    public static final String KEY = "ts";
+
+    private OpenSyncTimestamps() {
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /* A System.nanoTime() stamp on the elapsedRealtimeNanos() clock, both tick together while awake */
+    public static long fromNanoTime(long nanoTime) {
+        return now() - (System.nanoTime() - nanoTime);
+    }
+
+    static void put(JSONObject json, long src, long enq) throws JSONException {
+        JSONObject ts = new JSONObject();
+        ts.put("src", src);
+        ts.put("enq", enq);
+        json.put(KEY, ts);
+    }
+
+    /*
+     * Add the stamps as the last member of a JSON reply already serialized into
+     * out. Anything not ending as a non-empty JSON object, e.g. CBOR, is left alone.
+     */
+    static void appendToReply(OpenSyncIPCBuffer out, long src, long enq, long send) {
+        int len = out.length();
+        byte[] buf = out.array();
+        if (len < 3 || buf[0] != '{' || buf[len - 1] != '}' || buf[len - 2] == '{') {
+            return;
+        }
+
+        out.setLength(len - 1);
+        out.appendAscii(",\"ts\":{\"src\":").appendLong(src);
+        out.appendAscii(",\"enq\":").appendLong(enq);
+        out.appendAscii(",\"send\":").appendLong(send);
+        out.appendAscii("}}");
+    }
+}
@@ -0,0 +1,193 @@
+package com.opensync.app;
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * One snapshot of the Amlogic decoder status, e.g.
+ *
+ *   device name : ammvdec_h264
+ *   frame width : 1920
+ *   frame rate : 30 fps
+ *   fra err count : 0
+ *
+ * read() takes the whole file into a reused buffer and fills every field in a
+ * single pass, so the values are consistent with each other. Like the old
+ * per-key lookups, a field comes from the first "key : value" line containing
+ * its key, and numbers are the first run of digits of the value. Fields not
+ * found are 0, or null for the codec. Not thread-safe, one per owner.
+ */
+public class OpenSyncVdecStatus {
+    private static final String TAG = "OpenSync VdecStatus";
+    public static final String PATH = "/sys/class/vdec/vdec_status";
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+
+    private static final int WIDTH = 0;
+    private static final int HEIGHT = 1;
+    private static final int FRAME_RATE = 2;
+    private static final int FRAME_COUNT = 3;
+    private static final int DROP_COUNT = 4;
+    private static final int ERROR_COUNT = 5;
+    private static final int BIT_RATE = 6;
+    private static final int CODEC = 7;
+    private static final byte[][] KEYS = {
+            ascii("frame width"),
+            ascii("frame height"),
+            ascii("frame rate"),
+            ascii("frame count"),
+            ascii("drop count"),
+            ascii("fra err count"),
+            ascii("bit rate"),
+            ascii("device name"),
+    };
+
+    private final String path;
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private final int[] values = new int[KEYS.length];
+    private final boolean[] found = new boolean[KEYS.length];
+    private String codec;
+    private boolean readFailed;
+
+    public OpenSyncVdecStatus() {
+        this(PATH);
+    }
+
+    OpenSyncVdecStatus(String path) {
+        this.path = path;
+    }
+
+    /* Returns false when the status file could not be read, all fields are then cleared */
+    public boolean read() {
+        Arrays.fill(values, 0);
+        Arrays.fill(found, false);
+        codec = null;
+
+        int len = 0;
+        try (FileInputStream in = new FileInputStream(path)) {
+            int n;
+            while ((n = in.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+                if (len == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+        } catch (IOException e) {
+            /* Missing while nothing is decoding, do not flood the log */
+            if (!readFailed) {
+                Log.w(TAG, "Cannot read " + path + ": " + e.getMessage());
+                readFailed = true;
+            }
+            return false;
+        }
+        readFailed = false;
+
+        parse(len);
+        return true;
+    }
+
+    private void parse(int len) {
+        int lineStart = 0;
+        while (lineStart < len) {
+            int lineEnd = lineStart;
+            int colon = -1;
+            int colons = 0;
+            while (lineEnd < len && buf[lineEnd] != '\n') {
+                if (buf[lineEnd] == ':') {
+                    colon = lineEnd;
+                    colons++;
+                }
+                lineEnd++;
+            }
+
+            if (colons == 1) {
+                for (int field = 0; field < KEYS.length; field++) {
+                    if (!found[field] && contains(lineStart, lineEnd, KEYS[field])) {
+                        found[field] = true;
+                        if (field == CODEC) {
+                            codec = trimmed(colon + 1, lineEnd);
+                        } else {
+                            values[field] = firstNumber(colon + 1, lineEnd);
+                        }
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private boolean contains(int start, int end, byte[] key) {
+        int last = end - key.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < key.length && buf[i + j] == key[j]) {
+                j++;
+            }
+            if (j == key.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int firstNumber(int start, int end) {
+        int i = start;
+        while (i < end && (buf[i] < '0' || buf[i] > '9')) {
+            i++;
+        }
+        long value = 0;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9' && value <= Integer.MAX_VALUE) {
+            value = value * 10 + (buf[i++] - '0');
+        }
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    private String trimmed(int start, int end) {
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public int getWidth() {
+        return values[WIDTH];
+    }
+
+    public int getHeight() {
+        return values[HEIGHT];
+    }
+
+    public int getFrameRate() {
+        return values[FRAME_RATE];
+    }
+
+    public int getFrameCount() {
+        return values[FRAME_COUNT];
+    }
+
+    public int getDropCount() {
+        return values[DROP_COUNT];
+    }
+
+    public int getErrorCount() {
+        return values[ERROR_COUNT];
+    }
+
+    public int getBitRate() {
+        return values[BIT_RATE];
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+}
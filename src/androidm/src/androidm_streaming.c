@@ -246,7 +246,37 @@ static bool androidm_serialize_streaming_report(streaming_info_t *info)
     return res;
 }
 
-bool androidm_streaming_build_mqtt_report(time_t now)
+/*
+ * The periodic report carries the frame rate and video bit rate averaged over
+ * the played sampler intervals since the previous one, instead of the values
+ * at the moment of the poll. Nothing is replaced when nothing played.
+ */
+static void androidm_streaming_apply_summary(streaming_info_t *info)
+{
+    streaming_summary_t summary;
+
+    memset(&summary, 0, sizeof(summary));
+    if (!osandroid_streaming_summary_get(&summary))
+    {
+        LOGD("%s: osandroid_streaming_summary_get() failed", __func__);
+        return;
+    }
+
+    if (summary.samples == 0) return;
+
+    info->video_info.frame_rate = (uint32_t)(summary.frame_rate.avg + 0.5);
+    info->video_info.video_bit_rate = (uint32_t)(summary.bit_rate.avg + 0.5);
+    LOGD("%s: %u samples over %llu ms, fps p50 %.2f p90 %.2f, kbps p50 %.2f p90 %.2f",
+         __func__,
+         summary.samples,
+         (unsigned long long)summary.window_ms,
+         summary.frame_rate.p50,
+         summary.frame_rate.p90,
+         summary.bit_rate.p50,
+         summary.bit_rate.p90);
+}
+
+static bool androidm_streaming_build_report(bool periodic)
 {
     streaming_info_t *info;
     bool res = 0;
@@ -259,6 +289,9 @@ bool androidm_streaming_build_mqtt_report(time_t now)
         LOGW("%s: osandroid_streaming_get() failed", __func__);
     }
 
+    /* Only the periodic report resets the summary window */
+    if (periodic) androidm_streaming_apply_summary(info);
+
     res = androidm_serialize_streaming_report(info);
     if (!res)
     {
@@ -269,16 +302,16 @@ bool androidm_streaming_build_mqtt_report(time_t now)
     return res;
 }
 
-void androidm_streaming_event_cb(const char *message)
+bool androidm_streaming_build_mqtt_report(time_t now)
 {
-    streaming_info_t *info;
-    info = CALLOC(1, sizeof(streaming_info_t));
-
-    osandroid_streaming_json_parse(info, message);
-    LOGI("%s: event: %s", __func__, message);
-    androidm_streaming_build_mqtt_report(time(NULL));
+    return androidm_streaming_build_report(true);
+}
 
-    FREE(info);
+/* The event is a streaming_delta, only used as a trigger to report the current state */
+void androidm_streaming_event_cb(const char *message)
+{
+    LOGD("%s: event: %s", __func__, message);
+    androidm_streaming_build_report(false);
 }
 
 static void androidm_streaming_init(void *data)
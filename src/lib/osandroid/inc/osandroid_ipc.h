@@ -29,24 +29,47 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 #include "json_util.h"
 #include <ds_list.h>
+#include <stdint.h>
 
 #define ZMQ_MSG_MAX_LEN 2048
+/* Events are [topic][payload] multipart messages, the topic is the api name */
+#define OSANDROID_IPC_TOPIC_MAX_LEN 64
 
 /* IPC Timeout */
 #define OSANDROID_IPC_CONNECT_TIMEOUT 2000
 #define OSANDROID_IPC_RECV_TIMEOUT 30000
+/* Longest delay before a late osandroid_subscriber_register() takes effect */
+#define OSANDROID_IPC_SUB_RECV_TIMEOUT 500
+/* Subscriber callbacks registered at most */
+#define OSANDROID_IPC_MAX_CALLBACKS 16
+/* A reconnecting subscriber replays the events it missed from the Android event journal */
+#define OSANDROID_IPC_REPLAY_API "osandroid_event_replay"
+#define OSANDROID_IPC_REPLAY_TIMEOUT 5000
+#define OSANDROID_IPC_REPLAY_MAX_BYTES (48 * 1024)
+#define OSANDROID_IPC_REPLAY_BUF_LEN (64 * 1024)
+/*
+ * Events and replies carry Android's "ts":{"src","enq","send"} stamps on
+ * CLOCK_BOOTTIME. The receive side turns them into latency histograms per
+ * api, see osandroid_ipc_latency_get(), logged every LOG_INTERVAL seconds.
+ */
+#define OSANDROID_IPC_LATENCY_MAX_APIS 32
+#define OSANDROID_IPC_LATENCY_LOG_INTERVAL 300
 
 /* Events */
 #define ANDROID_EVENT_STA "osandroid_sta"
 #define ANDROID_EVENT_STA_CON "osandroid_sta_connected"
 #define ANDROID_EVENT_STA_DISCON "osandroid_sta_disconnected"
 #define ANDROID_EVENT_PERIPH_DEVICE_UPT "osandroid_peripheral_device_update"
+/* params[0].job of an async job: job_id, job_api, state (queued, running, done, failed), errCode, errMsg */
+#define ANDROID_EVENT_JOB "osandroid_job_event"
+/* params[0].streaming_delta of one session, see osandroid_streaming.h */
 #define ANDROID_EVENT_STREAMING "osandroid_streaming_event"
 
 typedef struct osandroid_ipc_cb
 {
     const char *api_name;
     void (*callback)(const char *);
+    bool subscribed;
     ds_list_node_t node;
 } osandroid_ipc_cb_t;
 
@@ -56,5 +79,7 @@ bool osandroid_ipc_deinit();
 bool osandroid_ipc_request(json_t *req, char *rep_buf, size_t rep_len);
 bool osandroid_subscriber_register(const char *api_name, void (*callback)(const char *));
 json_t *osandroid_ipc_build_header(const char *fun);
+json_t *osandroid_ipc_latency_get(void);
+int64_t osandroid_ipc_now_ns(void);
 
 #endif /* OSANDROID_IPC_H_INCLUDED */
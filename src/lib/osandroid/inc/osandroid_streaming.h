@@ -91,15 +91,114 @@ typedef struct streaming_video_info
     uint64_t buffering_time;
 } streaming_video_info_t;
 
+/* Rates over the last sampling window of the decoder counters */
+typedef struct streaming_window_info
+{
+    /* Window length (ms) and samples in it, 0 when no window is reported */
+    uint32_t window_ms;
+    uint32_t samples;
+    /* Frames per second over the window and in its worst interval */
+    double fps;
+    double fps_min;
+    double drops_per_sec;
+    double errors_per_sec;
+    /* Video bit rate seen by the samples */
+    uint32_t bit_rate_min;
+    uint32_t bit_rate_avg;
+    uint32_t bit_rate_max;
+} streaming_window_info_t;
+
+/* Stalls of the current playback, BUFFERING after it was PLAYING */
+typedef struct streaming_qoe_info
+{
+    uint32_t stall_count;
+    /* Total and longest stall (ms), an ongoing stall is included */
+    uint64_t stall_time;
+    uint64_t stall_max;
+    /* Stall time over stall and playing time */
+    double stall_ratio;
+    /* Time spent PLAYING (ms) */
+    uint64_t play_time;
+    /* Video bit rate weighted by the time it played */
+    uint32_t bit_rate_time_avg;
+} streaming_qoe_info_t;
+
+/* Reply buffer of osandroid_streaming_get, larger than ZMQ_MSG_MAX_LEN for the session list */
+#define OSANDROID_STREAMING_REP_LEN (16 * 1024)
+#define OSANDROID_STREAMING_MAX_SESSIONS 8
+
+/* One media session, the primary one is also reported in video/playback info */
+typedef struct streaming_session_info
+{
+    char app_name[512];
+    char title_channel[1024];
+    uint64_t total_duration;
+    uint64_t start_time;
+    uint64_t tx_bytes;
+    uint64_t rx_bytes;
+    uint64_t buffering_time;
+    streaming_playback_info_t playback_info;
+    streaming_qoe_info_t qoe_info;
+} streaming_session_info_t;
+
 typedef struct streaming_info
 {
     char app_name[512];
     streaming_video_info_t video_info;
+    streaming_window_info_t window_info;
+    streaming_qoe_info_t qoe_info;
+    /* Every tracked media session, playing or not */
+    uint32_t n_sessions;
+    streaming_session_info_t sessions[OSANDROID_STREAMING_MAX_SESSIONS];
     streaming_playback_info_t playback_info;
     char error[512];
 } streaming_info_t;
 
+/* Distribution of one metric over the summary window */
+typedef struct streaming_summary_metric
+{
+    uint32_t count;
+    double min;
+    double max;
+    double avg;
+    double p50;
+    double p90;
+    double p95;
+    double p99;
+} streaming_summary_metric_t;
+
+/* Sampler intervals since the previous osandroid_streaming_summary_get */
+typedef struct streaming_summary
+{
+    uint64_t window_ms;
+    uint32_t samples;
+    /* kbps */
+    streaming_summary_metric_t bit_rate;
+    /* frames per second */
+    streaming_summary_metric_t frame_rate;
+    /* dropped frames per second */
+    streaming_summary_metric_t drop_rate;
+} streaming_summary_t;
+
+/*
+ * ANDROID_EVENT_STREAMING carries params[0].streaming_delta of one session,
+ * not a streaming_info:
+ *   app_name  the session
+ *   version   counts the events of the session, a gap means missed events
+ *   keyframe  true when fields holds every field, else only the changed ones
+ *   fields    streaming_info keys of the session
+ *   removed   keys gone since the previous event
+ *   ended     true on the last event of a session that went away
+ * An event is sent on a playback change of the session. Keyframes come for a
+ * new session, after 32 deltas and every 60 s, the periodic ones only while
+ * the session is PLAYING or BUFFERING: a paused or idle session is silent.
+ * A subscriber that only needs to know something changed, like androidm,
+ * can ignore the payload and call osandroid_streaming_get().
+ */
 bool osandroid_streaming_get(streaming_info_t *info);
 bool osandroid_streaming_json_parse(streaming_info_t *info, const char *rep_buf);
+/* Returns the summary and starts a new window on the Android side */
+bool osandroid_streaming_summary_get(streaming_summary_t *summary);
+bool osandroid_streaming_summary_json_parse(streaming_summary_t *summary, const char *rep_buf);
 
 #endif /* OSANDROID_STREAMING_H_INCLUDED */
@@ -28,10 +28,13 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 /* std libc */
 #include <const.h>
 #include <log.h>
+#include <pthread.h>
 #include <stdbool.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <time.h>
 
 /* 3rd party */
 #include <jansson.h>
@@ -47,6 +50,8 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 #include "osandroid_ipc.h"
 
 #define IPC_LOG_TAG "AndroidIPC"
+#define SUB_MONITOR_ADDR "inproc://osandroid-sub-monitor"
+#define LATENCY_BUCKETS 24
 #define randof(num) (int)((float)(num) * random() / (RAND_MAX + 1.0))
 
 static void *req_context = NULL;
@@ -57,6 +62,203 @@ static void *sub_context = NULL;
 static void *subscriber = NULL;
 
 static ds_list_t osandroid_ipc_cb_list = DS_LIST_INIT(osandroid_ipc_cb_t, node);
+/* Callbacks are registered from other tasks, only the subscriber task touches the socket */
+static pthread_mutex_t osandroid_ipc_cb_lock = PTHREAD_MUTEX_INITIALIZER;
+static bool osandroid_ipc_cb_pending = false;
+static int osandroid_ipc_cb_count = 0;
+
+/* Journal position of the last event delivered, only used by the subscriber task */
+static json_int_t sub_epoch = 0;
+static json_int_t sub_last_seq = 0;
+
+/*
+ * Stages of the "ts" stamps. For a reply, source to enqueue is the wait in the
+ * Android IPC server, enqueue to send the handler, and end to end starts when
+ * the request was sent.
+ */
+enum
+{
+    LATENCY_SRC_ENQ,
+    LATENCY_ENQ_SEND,
+    LATENCY_SEND_RECV,
+    LATENCY_END_TO_END,
+    LATENCY_STAGES
+};
+
+static const char *latency_stage_names[LATENCY_STAGES] = {
+    "source_to_enqueue",
+    "enqueue_to_send",
+    "send_to_receive",
+    "end_to_end",
+};
+
+typedef struct
+{
+    char api[OSANDROID_IPC_TOPIC_MAX_LEN];
+    uint64_t count;
+    uint64_t total_us[LATENCY_STAGES];
+    uint64_t max_us[LATENCY_STAGES];
+    /* Bucket i holds [2^i, 2^(i+1)) us, like OpenSyncMetrics */
+    uint64_t hist[LATENCY_STAGES][LATENCY_BUCKETS];
+} osandroid_ipc_latency_t;
+
+static osandroid_ipc_latency_t latency_table[OSANDROID_IPC_LATENCY_MAX_APIS];
+static int latency_count = 0;
+static pthread_mutex_t latency_lock = PTHREAD_MUTEX_INITIALIZER;
+
+/* Same clock as Android's SystemClock.elapsedRealtimeNanos() */
+int64_t osandroid_ipc_now_ns(void)
+{
+    struct timespec ts;
+
+    clock_gettime(CLOCK_BOOTTIME, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static int64_t osandroid_ipc_ts_field(const char *ts, const char *end, const char *key)
+{
+    const char *p = strstr(ts, key);
+
+    if (!p || p > end) return 0;
+    return strtoll(p + strlen(key), NULL, 10);
+}
+
+static void osandroid_ipc_latency_add(osandroid_ipc_latency_t *lat, int stage, int64_t ns)
+{
+    uint64_t us = ns > 0 ? (uint64_t)ns / 1000 : 0;
+    int bucket = 0;
+
+    while (bucket < LATENCY_BUCKETS - 1 && (us >> (bucket + 1)) != 0)
+    {
+        bucket++;
+    }
+    lat->hist[stage][bucket]++;
+    lat->total_us[stage] += us;
+    if (us > lat->max_us[stage]) lat->max_us[stage] = us;
+}
+
+/*
+ * Receive hook for an event or reply of api received at recv_ns. origin_ns is
+ * when the request was sent, 0 for events, which start at the Android source.
+ */
+static void osandroid_ipc_latency_hook(const char *api, const char *msg, int64_t recv_ns, int64_t origin_ns)
+{
+    const char *ts = NULL;
+    const char *end;
+    const char *p;
+    int64_t src, enq, send;
+    osandroid_ipc_latency_t *lat = NULL;
+    int i;
+
+    if (!api || !msg) return;
+
+    /* The stamps of a reply are its last member */
+    for (p = strstr(msg, "\"ts\":{"); p; p = strstr(p + 1, "\"ts\":{"))
+    {
+        ts = p;
+    }
+    if (!ts || !(end = strchr(ts, '}'))) return;
+
+    src = osandroid_ipc_ts_field(ts, end, "\"src\":");
+    enq = osandroid_ipc_ts_field(ts, end, "\"enq\":");
+    send = osandroid_ipc_ts_field(ts, end, "\"send\":");
+    if (!src || !enq || !send) return;
+
+    pthread_mutex_lock(&latency_lock);
+    for (i = 0; i < latency_count; i++)
+    {
+        if (strcmp(latency_table[i].api, api) == 0)
+        {
+            lat = &latency_table[i];
+            break;
+        }
+    }
+    if (!lat && latency_count < OSANDROID_IPC_LATENCY_MAX_APIS)
+    {
+        lat = &latency_table[latency_count++];
+        STRSCPY(lat->api, api);
+    }
+    if (lat)
+    {
+        lat->count++;
+        osandroid_ipc_latency_add(lat, LATENCY_SRC_ENQ, enq - src);
+        osandroid_ipc_latency_add(lat, LATENCY_ENQ_SEND, send - enq);
+        osandroid_ipc_latency_add(lat, LATENCY_SEND_RECV, recv_ns - send);
+        osandroid_ipc_latency_add(lat, LATENCY_END_TO_END, recv_ns - (origin_ns ? origin_ns : src));
+    }
+    pthread_mutex_unlock(&latency_lock);
+}
+
+/* Upper bound of the bucket holding the percentile, in us */
+static uint64_t osandroid_ipc_latency_percentile(const uint64_t *hist, uint64_t total, int pct)
+{
+    uint64_t rank = (total * pct + 99) / 100;
+    uint64_t seen = 0;
+    int i;
+
+    if (!total) return 0;
+    for (i = 0; i < LATENCY_BUCKETS; i++)
+    {
+        seen += hist[i];
+        if (seen >= rank) break;
+    }
+    return (1ULL << (i + 1)) - 1;
+}
+
+/*
+ * {"apis":[{"api":..., "count":..., "end_to_end":{"avg","max","p50","p90","p99"}, ...}]}
+ * in us. The caller owns the returned reference.
+ */
+json_t *osandroid_ipc_latency_get(void)
+{
+    json_t *apis = json_array();
+    json_t *entry;
+    json_t *stage;
+    osandroid_ipc_latency_t *lat;
+    int i, s;
+
+    pthread_mutex_lock(&latency_lock);
+    for (i = 0; i < latency_count; i++)
+    {
+        lat = &latency_table[i];
+        entry = json_object();
+        json_object_set_new(entry, "api", json_string(lat->api));
+        json_object_set_new(entry, "count", json_integer(lat->count));
+        for (s = 0; s < LATENCY_STAGES; s++)
+        {
+            stage = json_object();
+            json_object_set_new(stage, "avg", json_integer(lat->count ? lat->total_us[s] / lat->count : 0));
+            json_object_set_new(stage, "max", json_integer(lat->max_us[s]));
+            json_object_set_new(stage, "p50", json_integer(osandroid_ipc_latency_percentile(lat->hist[s], lat->count, 50)));
+            json_object_set_new(stage, "p90", json_integer(osandroid_ipc_latency_percentile(lat->hist[s], lat->count, 90)));
+            json_object_set_new(stage, "p99", json_integer(osandroid_ipc_latency_percentile(lat->hist[s], lat->count, 99)));
+            json_object_set_new(entry, latency_stage_names[s], stage);
+        }
+        json_array_append_new(apis, entry);
+    }
+    pthread_mutex_unlock(&latency_lock);
+
+    return json_pack("{s:o}", "apis", apis);
+}
+
+static void osandroid_ipc_latency_log(void)
+{
+    osandroid_ipc_latency_t *lat;
+    int i;
+
+    pthread_mutex_lock(&latency_lock);
+    for (i = 0; i < latency_count; i++)
+    {
+        lat = &latency_table[i];
+        LOGI(IPC_LOG_TAG " Latency %s: %llu received, end to end p50 %llu us p99 %llu us max %llu us",
+             lat->api,
+             (unsigned long long)lat->count,
+             (unsigned long long)osandroid_ipc_latency_percentile(lat->hist[LATENCY_END_TO_END], lat->count, 50),
+             (unsigned long long)osandroid_ipc_latency_percentile(lat->hist[LATENCY_END_TO_END], lat->count, 99),
+             (unsigned long long)lat->max_us[LATENCY_END_TO_END]);
+    }
+    pthread_mutex_unlock(&latency_lock);
+}
 
 bool osandroid_ipc_requester_init()
 {
@@ -98,14 +300,328 @@ bool osandroid_ipc_requester_init()
     return true;
 }
 
+/* Subscribe to the topic of every callback registered since the last call */
+static void osandroid_subscriber_apply(void)
+{
+    osandroid_ipc_cb_t *data;
+
+    pthread_mutex_lock(&osandroid_ipc_cb_lock);
+    ds_list_foreach(&osandroid_ipc_cb_list, data)
+    {
+        if (!data->subscribed)
+        {
+            zmq_setsockopt(subscriber, ZMQ_SUBSCRIBE, data->api_name, strlen(data->api_name));
+            data->subscribed = true;
+            LOGI(IPC_LOG_TAG " PUB/SUB IPC subscribed to %s", data->api_name);
+        }
+    }
+    pthread_mutex_unlock(&osandroid_ipc_cb_lock);
+}
+
+/*
+ * Same prefix match as the subscription, e.g. osandroid_sta covers osandroid_sta_connected.
+ * Callbacks run without the lock, so a slow one does not block osandroid_subscriber_register().
+ */
+static void osandroid_subscriber_deliver(const char *topic, const char *message)
+{
+    void (*callbacks[OSANDROID_IPC_MAX_CALLBACKS])(const char *);
+    osandroid_ipc_cb_t *data;
+    int count = 0;
+    int i;
+
+    pthread_mutex_lock(&osandroid_ipc_cb_lock);
+    ds_list_foreach(&osandroid_ipc_cb_list, data)
+    {
+        if (count < OSANDROID_IPC_MAX_CALLBACKS && strncmp(topic, data->api_name, strlen(data->api_name)) == 0)
+        {
+            callbacks[count++] = data->callback;
+        }
+    }
+    pthread_mutex_unlock(&osandroid_ipc_cb_lock);
+
+    for (i = 0; i < count; i++)
+    {
+        callbacks[i](message);
+    }
+}
+
+/*
+ * Topics whose callbacks only take an event as the hint to fetch the current
+ * state. Replaying each missed one would fetch the same state again and again,
+ * a replay delivers the newest one only.
+ */
+static const char *osandroid_replay_latest_only[] = {
+    ANDROID_EVENT_STREAMING,
+};
+
+static bool osandroid_replay_is_latest_only(const char *api)
+{
+    size_t i;
+
+    for (i = 0; i < ARRAY_SIZE(osandroid_replay_latest_only); i++)
+    {
+        if (strcmp(api, osandroid_replay_latest_only[i]) == 0) return true;
+    }
+    return false;
+}
+
+/*
+ * Reads the top-level integer members "epoch" and "seq" of an event in one
+ * pass over the text, without building the JSON tree the callback builds
+ * anyway. Strings are skipped, so nested objects and values never match.
+ */
+static void osandroid_subscriber_stamp(const char *message, long long *epoch, long long *seq)
+{
+    const char *p = message;
+    const char *key;
+    const char *colon;
+    size_t key_len;
+    int depth = 0;
+
+    for (; *p; p++)
+    {
+        if (*p == '{' || *p == '[')
+        {
+            depth++;
+        }
+        else if (*p == '}' || *p == ']')
+        {
+            depth--;
+        }
+        else if (*p == '"')
+        {
+            key = p + 1;
+            for (p++; *p && *p != '"'; p++)
+            {
+                if (*p == '\\' && p[1]) p++;
+            }
+            if (!*p) return;
+            key_len = p - key;
+
+            colon = p + 1;
+            while (*colon == ' ') colon++;
+            if (depth != 1 || *colon != ':') continue;
+
+            if (key_len == 5 && strncmp(key, "epoch", 5) == 0)
+            {
+                *epoch = strtoll(colon + 1, NULL, 10);
+            }
+            else if (key_len == 3 && strncmp(key, "seq", 3) == 0)
+            {
+                *seq = strtoll(colon + 1, NULL, 10);
+            }
+        }
+    }
+}
+
+/*
+ * Events carry the journal "epoch" and "seq". Returns false for an event at or
+ * before the last one delivered, i.e. one a replay already delivered.
+ */
+static bool osandroid_subscriber_track(const char *message)
+{
+    long long epoch = 0;
+    long long seq = 0;
+
+    osandroid_subscriber_stamp(message, &epoch, &seq);
+    if (!epoch || !seq) return true;
+
+    if (epoch == sub_epoch && seq <= sub_last_seq) return false;
+
+    sub_epoch = epoch;
+    sub_last_seq = seq;
+    return true;
+}
+
+/*
+ * PUB/SUB loses whatever is published while the subscriber is disconnected.
+ * Fetch the events of the registered topics after the last delivered one and
+ * deliver them in order. Uses its own REQ socket, the shared requester
+ * belongs to the other tasks.
+ */
+static void osandroid_subscriber_replay(void)
+{
+    int recv_timeout = OSANDROID_IPC_REPLAY_TIMEOUT;
+    int linger = 0;
+    bool more = true;
+    void *sock;
+    char *buf;
+    char *msg;
+    const char *api;
+    size_t i;
+    int rc;
+    json_t *latest;
+    json_t *topics;
+    json_t *req;
+    json_t *rep;
+    json_t *replay;
+    json_t *events;
+    json_t *event;
+    osandroid_ipc_cb_t *data;
+
+    sock = zmq_socket(sub_context, ZMQ_REQ);
+    zmq_setsockopt(sock, ZMQ_RCVTIMEO, &recv_timeout, sizeof(recv_timeout));
+    zmq_setsockopt(sock, ZMQ_LINGER, &linger, sizeof(linger));
+    if (zmq_connect(sock, CONFIG_ANDROID_ZMQ_REQREP_SOCK_ADDR) != 0)
+    {
+        LOGE(IPC_LOG_TAG " PUB/SUB IPC replay connect failed");
+        zmq_close(sock);
+        return;
+    }
+
+    buf = MALLOC(OSANDROID_IPC_REPLAY_BUF_LEN);
+    latest = json_object();
+    while (more)
+    {
+        topics = json_array();
+        pthread_mutex_lock(&osandroid_ipc_cb_lock);
+        ds_list_foreach(&osandroid_ipc_cb_list, data)
+        {
+            json_array_append_new(topics, json_string(data->api_name));
+        }
+        pthread_mutex_unlock(&osandroid_ipc_cb_lock);
+
+        req = json_pack("{s:s, s:i, s:{s:I, s:I, s:o, s:i}}",
+                        "api",
+                        OSANDROID_IPC_REPLAY_API,
+                        "timeout_ms",
+                        OSANDROID_IPC_REPLAY_TIMEOUT,
+                        "params",
+                        "since_seq",
+                        sub_last_seq,
+                        "epoch",
+                        sub_epoch,
+                        "topics",
+                        topics,
+                        "max_bytes",
+                        OSANDROID_IPC_REPLAY_MAX_BYTES);
+        msg = json_dumps(req, JSON_COMPACT);
+        json_decref(req);
+        if (!msg) break;
+
+        rc = zmq_send(sock, msg, strlen(msg), 0);
+        json_free(msg);
+        if (rc < 0) break;
+
+        rc = zmq_recv(sock, buf, OSANDROID_IPC_REPLAY_BUF_LEN - 1, 0);
+        if (rc < 0 || rc >= OSANDROID_IPC_REPLAY_BUF_LEN - 1)
+        {
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC replay %s", rc < 0 ? "receive failed" : "reply too big");
+            break;
+        }
+        buf[rc] = '\0';
+
+        rep = json_loads(buf, 0, NULL);
+        replay = json_object_get(json_array_get(json_object_get(rep, "params"), 0), "replay");
+        if (!replay)
+        {
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC replay failed: %s", buf);
+            json_decref(rep);
+            break;
+        }
+
+        if (json_is_true(json_object_get(replay, "reset")))
+        {
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC event journal was recreated, replaying it from the start");
+        }
+        if (json_is_true(json_object_get(replay, "truncated")))
+        {
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC events after seq %lld are lost", (long long)sub_last_seq);
+        }
+
+        if (json_integer_value(json_object_get(replay, "skipped")) > 0)
+        {
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC %lld events too big to replay were skipped",
+                 (long long)json_integer_value(json_object_get(replay, "skipped")));
+        }
+
+        events = json_object_get(replay, "events");
+        for (i = 0; i < json_array_size(events); i++)
+        {
+            event = json_array_get(events, i);
+            api = json_string_value(json_object_get(event, "api"));
+            if (!api) continue;
+
+            if (osandroid_replay_is_latest_only(api))
+            {
+                /* Delivered once the replay is complete */
+                json_object_set(latest, api, event);
+                continue;
+            }
+
+            msg = json_dumps(event, JSON_COMPACT);
+            if (msg)
+            {
+                osandroid_subscriber_deliver(api, msg);
+                json_free(msg);
+            }
+        }
+        LOGI(IPC_LOG_TAG " PUB/SUB IPC replayed %zu events", json_array_size(events));
+
+        sub_epoch = json_integer_value(json_object_get(replay, "epoch"));
+        sub_last_seq = json_integer_value(json_object_get(replay, "next_since_seq"));
+        more = json_is_true(json_object_get(replay, "more"));
+        json_decref(rep);
+    }
+
+    json_object_foreach(latest, api, event)
+    {
+        msg = json_dumps(event, JSON_COMPACT);
+        if (msg)
+        {
+            osandroid_subscriber_deliver(api, msg);
+            json_free(msg);
+        }
+    }
+    json_decref(latest);
+
+    FREE(buf);
+    zmq_close(sock);
+}
+
+/* Frames of a socket monitor event: [uint16 event, uint32 value][endpoint] */
+static void osandroid_subscriber_monitor(void *monitor)
+{
+    uint8_t event[6];
+    char endpoint[256];
+    uint16_t id;
+
+    if (zmq_recv(monitor, event, sizeof(event), 0) < (int)sizeof(id)) return;
+    zmq_recv(monitor, endpoint, sizeof(endpoint), 0);
+    memcpy(&id, event, sizeof(id));
+
+    if (id == ZMQ_EVENT_DISCONNECTED)
+    {
+        LOGI(IPC_LOG_TAG " PUB/SUB IPC publisher disconnected");
+    }
+    else if (id == ZMQ_EVENT_CONNECTED)
+    {
+        LOGI(IPC_LOG_TAG " PUB/SUB IPC publisher connected");
+        /* Nothing to catch up with before the first event was delivered */
+        if (sub_epoch != 0) osandroid_subscriber_replay();
+    }
+}
+
 static bool osandroid_subscriber_cb(void *arg)
 {
     char message[ZMQ_MSG_MAX_LEN] = "";
+    char topic[OSANDROID_IPC_TOPIC_MAX_LEN] = "";
+    int more;
+    size_t more_size;
     int rc;
-    osandroid_ipc_cb_t *data;
+    int64_t recv_ns;
+    int64_t next_log_ns;
+    void *monitor;
+    zmq_pollitem_t items[2];
 
     if (!sub_context) sub_context = zmq_ctx_new();
     subscriber = zmq_socket(sub_context, ZMQ_SUB);
+
+    /* (Re)connections of the subscriber trigger a replay of the missed events */
+    zmq_socket_monitor(subscriber, SUB_MONITOR_ADDR, ZMQ_EVENT_CONNECTED | ZMQ_EVENT_DISCONNECTED);
+    monitor = zmq_socket(sub_context, ZMQ_PAIR);
+    zmq_connect(monitor, SUB_MONITOR_ADDR);
+
     while (1)
     {
         rc = zmq_connect(subscriber, CONFIG_ANDROID_ZMQ_PUBSUB_SOCK_ADDR);
@@ -121,24 +637,75 @@ static bool osandroid_subscriber_cb(void *arg)
         }
     }
 
-    zmq_setsockopt(subscriber, ZMQ_SUBSCRIBE, "", 0);
+    /*
+     * Events are [topic][payload] with the api name as topic. Subscribing to the
+     * registered api names lets the publisher filter, so only wanted events
+     * arrive. The poll timeout picks up callbacks registered later on.
+     */
+    __atomic_store_n(&osandroid_ipc_cb_pending, true, __ATOMIC_RELEASE);
+
+    next_log_ns = osandroid_ipc_now_ns() + OSANDROID_IPC_LATENCY_LOG_INTERVAL * 1000000000LL;
+    items[0].socket = subscriber;
+    items[0].fd = 0;
+    items[0].events = ZMQ_POLLIN;
+    items[1].socket = monitor;
+    items[1].fd = 0;
+    items[1].events = ZMQ_POLLIN;
 
     while (1)
     {
+        if (__atomic_exchange_n(&osandroid_ipc_cb_pending, false, __ATOMIC_ACQ_REL))
+        {
+            osandroid_subscriber_apply();
+        }
+
+        rc = zmq_poll(items, 2, OSANDROID_IPC_SUB_RECV_TIMEOUT);
+        if (osandroid_ipc_now_ns() >= next_log_ns)
+        {
+            osandroid_ipc_latency_log();
+            next_log_ns += OSANDROID_IPC_LATENCY_LOG_INTERVAL * 1000000000LL;
+        }
+        if (rc <= 0) continue;
+
+        /* Before the events, so a replay comes ahead of what queued up meanwhile */
+        if (items[1].revents & ZMQ_POLLIN)
+        {
+            osandroid_subscriber_monitor(monitor);
+        }
+        if (!(items[0].revents & ZMQ_POLLIN)) continue;
+
+        rc = zmq_recv(subscriber, topic, sizeof(topic) - 1, 0);
+        if (rc < 0) continue;
+        topic[rc < (int)sizeof(topic) ? rc : (int)sizeof(topic) - 1] = '\0';
+
+        more = 0;
+        more_size = sizeof(more);
+        zmq_getsockopt(subscriber, ZMQ_RCVMORE, &more, &more_size);
+        if (!more)
+        {
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC event %s without payload dropped", topic);
+            continue;
+        }
+
         memset(message, 0, ZMQ_MSG_MAX_LEN);
-        rc = zmq_recv(subscriber, message, ZMQ_MSG_MAX_LEN, 0);
-        if (rc > 0)
+        rc = zmq_recv(subscriber, message, ZMQ_MSG_MAX_LEN - 1, 0);
+        recv_ns = osandroid_ipc_now_ns();
+        if (rc <= 0) continue;
+        if (rc > ZMQ_MSG_MAX_LEN - 1)
         {
-            ds_list_foreach(&osandroid_ipc_cb_list, data)
-            {
-                if (strstr(message, data->api_name))
-                {
-                    data->callback(message);
-                }
-            }
+            /* Half an event is no JSON, the callbacks never see it */
+            LOGW(IPC_LOG_TAG " PUB/SUB IPC event %s of %d bytes too big, dropped", topic, rc);
+            continue;
+        }
+
+        if (osandroid_subscriber_track(message))
+        {
+            osandroid_ipc_latency_hook(topic, message, recv_ns, 0);
+            osandroid_subscriber_deliver(topic, message);
         }
     }
 
+    zmq_close(monitor);
     zmq_close(subscriber);
     return true;
 }
@@ -147,10 +714,23 @@ bool osandroid_subscriber_register(const char *api_name, void (*callback)(const
 {
     osandroid_ipc_cb_t *cb = NULL;
 
+    pthread_mutex_lock(&osandroid_ipc_cb_lock);
+    if (osandroid_ipc_cb_count >= OSANDROID_IPC_MAX_CALLBACKS)
+    {
+        pthread_mutex_unlock(&osandroid_ipc_cb_lock);
+        LOGE(IPC_LOG_TAG " Too many subscriber callbacks, %s not registered", api_name);
+        return false;
+    }
+
     cb = CALLOC(1, sizeof(*cb));
     cb->callback = callback;
     cb->api_name = api_name;
+    cb->subscribed = false;
+
     ds_list_insert_head(&osandroid_ipc_cb_list, cb);
+    osandroid_ipc_cb_count++;
+    pthread_mutex_unlock(&osandroid_ipc_cb_lock);
+    __atomic_store_n(&osandroid_ipc_cb_pending, true, __ATOMIC_RELEASE);
 
     return true;
 }
@@ -184,11 +764,14 @@ bool osandroid_ipc_deinit()
     if (!requester) zmq_close(requester);
     if (!subscriber) zmq_close(subscriber);
 
+    pthread_mutex_lock(&osandroid_ipc_cb_lock);
     for (data = ds_list_ifirst(&iter, &osandroid_ipc_cb_list); data != NULL; data = ds_list_inext(&iter))
     {
         ds_list_iremove(&iter);
         FREE(data);
     }
+    osandroid_ipc_cb_count = 0;
+    pthread_mutex_unlock(&osandroid_ipc_cb_lock);
 
     return true;
 }
@@ -207,14 +790,26 @@ bool osandroid_ipc_request(json_t *req, char *rep_buf, size_t rep_len)
         return false;
     }
 
+    /*
+     * Android drops a request still queued or running once timeout_ms passed,
+     * by then we stopped waiting for the reply anyway.
+     */
+    if (!json_object_get(req, "timeout_ms"))
+    {
+        json_object_set_new(req, "timeout_ms", json_integer(OSANDROID_IPC_RECV_TIMEOUT));
+    }
+
+    const char *api = json_string_value(json_object_get(req, "api"));
     char *buf = json_dumps(req, 0);
     int len = strlen(buf);
+    int64_t sent_ns;
     if (!buf || !len)
     {
         LOGE(IPC_LOG_TAG " JSON request dumps nothing");
         return false;
     }
 
+    sent_ns = osandroid_ipc_now_ns();
     int rc = zmq_send(requester, buf, len, 0);
     if (rc == -1)
     {
@@ -263,6 +858,7 @@ bool osandroid_ipc_request(json_t *req, char *rep_buf, size_t rep_len)
     }
 
     (rep_buf)[rc] = '\0';
+    osandroid_ipc_latency_hook(api, rep_buf, osandroid_ipc_now_ns(), sent_ns);
 
     if (buf) json_free(buf);
     return true;
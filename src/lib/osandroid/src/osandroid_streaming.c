@@ -39,10 +39,110 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 /* internal */
 #include <os.h>
 #include <util.h>
+#include "memutil.h"
 
 #include "osandroid_ipc.h"
 #include "osandroid_streaming.h"
 
+/* Returns false when key is not a QoE key */
+static bool osandroid_streaming_qoe_parse(streaming_qoe_info_t *qoe, const char *key, json_t *item)
+{
+    if (strcmp(key, "stall_count") == 0)
+    {
+        qoe->stall_count = json_integer_value(item);
+    }
+    else if (strcmp(key, "stall_time") == 0)
+    {
+        qoe->stall_time = json_integer_value(item);
+    }
+    else if (strcmp(key, "stall_max") == 0)
+    {
+        qoe->stall_max = json_integer_value(item);
+    }
+    else if (strcmp(key, "stall_ratio") == 0)
+    {
+        qoe->stall_ratio = json_number_value(item);
+    }
+    else if (strcmp(key, "play_time") == 0)
+    {
+        qoe->play_time = json_integer_value(item);
+    }
+    else if (strcmp(key, "bit_rate_time_avg") == 0)
+    {
+        qoe->bit_rate_time_avg = json_integer_value(item);
+    }
+    else
+    {
+        return false;
+    }
+
+    return true;
+}
+
+static void osandroid_streaming_session_parse(streaming_session_info_t *session, json_t *obj)
+{
+    const char *key;
+    json_t *item;
+
+    json_object_foreach(obj, key, item)
+    {
+        if (json_is_string(item))
+        {
+            if (strcmp(key, "app_name") == 0)
+            {
+                STRSCPY(session->app_name, json_string_value(item));
+            }
+            else if (strcmp(key, "title_channel") == 0)
+            {
+                STRSCPY(session->title_channel, json_string_value(item));
+            }
+        }
+        else if (json_is_number(item))
+        {
+            if (osandroid_streaming_qoe_parse(&session->qoe_info, key, item))
+            {
+                continue;
+            }
+            else if (strcmp(key, "total_duration") == 0)
+            {
+                session->total_duration = json_integer_value(item);
+            }
+            else if (strcmp(key, "start_time") == 0)
+            {
+                session->start_time = json_integer_value(item);
+            }
+            else if (strcmp(key, "tx_bytes") == 0)
+            {
+                session->tx_bytes = json_integer_value(item);
+            }
+            else if (strcmp(key, "rx_bytes") == 0)
+            {
+                session->rx_bytes = json_integer_value(item);
+            }
+            else if (strcmp(key, "buffering_time") == 0)
+            {
+                session->buffering_time = json_integer_value(item);
+            }
+            else if (strcmp(key, "duration") == 0)
+            {
+                session->playback_info.duration = json_integer_value(item);
+            }
+            else if (strcmp(key, "volume") == 0)
+            {
+                session->playback_info.volume = json_integer_value(item);
+            }
+            else if (strcmp(key, "play_speed") == 0)
+            {
+                session->playback_info.play_speed = (float)json_number_value(item);
+            }
+            else if (strcmp(key, "state") == 0)
+            {
+                session->playback_info.state = json_integer_value(item);
+            }
+        }
+    }
+}
+
 bool osandroid_streaming_json_parse(streaming_info_t *info, const char *rep_buf)
 {
     json_error_t error;
@@ -91,7 +191,12 @@ bool osandroid_streaming_json_parse(streaming_info_t *info, const char *rep_buf)
                 }
                 else if (json_is_number(item))
                 {
-                    if (strcmp(key, "total_duration") == 0)
+                    if (osandroid_streaming_qoe_parse(&info->qoe_info, key, item))
+                    {
+                        ret = true;
+                        continue;
+                    }
+                    else if (strcmp(key, "total_duration") == 0)
                     {
                         info->video_info.total_duration = json_integer_value(item);
                     }
@@ -171,6 +276,42 @@ bool osandroid_streaming_json_parse(streaming_info_t *info, const char *rep_buf)
                     {
                         info->playback_info.state = json_integer_value(item);
                     }
+                    else if (strcmp(key, "window_ms") == 0)
+                    {
+                        info->window_info.window_ms = json_integer_value(item);
+                    }
+                    else if (strcmp(key, "window_samples") == 0)
+                    {
+                        info->window_info.samples = json_integer_value(item);
+                    }
+                    else if (strcmp(key, "window_fps") == 0)
+                    {
+                        info->window_info.fps = json_number_value(item);
+                    }
+                    else if (strcmp(key, "window_fps_min") == 0)
+                    {
+                        info->window_info.fps_min = json_number_value(item);
+                    }
+                    else if (strcmp(key, "window_drops_per_sec") == 0)
+                    {
+                        info->window_info.drops_per_sec = json_number_value(item);
+                    }
+                    else if (strcmp(key, "window_errors_per_sec") == 0)
+                    {
+                        info->window_info.errors_per_sec = json_number_value(item);
+                    }
+                    else if (strcmp(key, "window_bit_rate_min") == 0)
+                    {
+                        info->window_info.bit_rate_min = json_integer_value(item);
+                    }
+                    else if (strcmp(key, "window_bit_rate_avg") == 0)
+                    {
+                        info->window_info.bit_rate_avg = json_integer_value(item);
+                    }
+                    else if (strcmp(key, "window_bit_rate_max") == 0)
+                    {
+                        info->window_info.bit_rate_max = json_integer_value(item);
+                    }
 
                     ret = true;
                 }
@@ -182,6 +323,29 @@ bool osandroid_streaming_json_parse(streaming_info_t *info, const char *rep_buf)
         }
     }
 
+    if (json_array_size(params) > 0)
+    {
+        json_t *sessions = json_object_get(json_array_get(params, 0), "sessions");
+        size_t i;
+
+        info->n_sessions = 0;
+        for (i = 0; i < json_array_size(sessions); i++)
+        {
+            if (info->n_sessions == OSANDROID_STREAMING_MAX_SESSIONS)
+            {
+                LOGW("%s: %zu sessions, only %d reported", __func__,
+                     json_array_size(sessions), OSANDROID_STREAMING_MAX_SESSIONS);
+                break;
+            }
+            if (json_is_object(json_array_get(sessions, i)))
+            {
+                streaming_session_info_t *session = &info->sessions[info->n_sessions++];
+                memset(session, 0, sizeof(*session));
+                osandroid_streaming_session_parse(session, json_array_get(sessions, i));
+            }
+        }
+    }
+
     if (params) json_decref(params);
     if (report) json_decref(report);
     if (root) json_decref(root);
@@ -191,7 +355,7 @@ bool osandroid_streaming_json_parse(streaming_info_t *info, const char *rep_buf)
 
 bool osandroid_streaming_get(streaming_info_t *info)
 {
-    char rep_buf[ZMQ_MSG_MAX_LEN];
+    char *rep_buf = NULL;
     bool ret = false;
 
     json_t *msg = osandroid_ipc_build_header(__func__);
@@ -201,7 +365,8 @@ bool osandroid_streaming_get(streaming_info_t *info)
         return false;
     }
 
-    ret = osandroid_ipc_request(msg, rep_buf, ZMQ_MSG_MAX_LEN);
+    rep_buf = MALLOC(OSANDROID_STREAMING_REP_LEN);
+    ret = osandroid_ipc_request(msg, rep_buf, OSANDROID_STREAMING_REP_LEN);
     if (!ret)
     {
         LOGE("%s: IPC request failed", __func__);
@@ -213,6 +378,81 @@ bool osandroid_streaming_get(streaming_info_t *info)
 
 cleanup:
     if (msg) json_decref(msg);
+    FREE(rep_buf);
+
+    return ret;
+}
+
+static void osandroid_streaming_summary_metric_parse(streaming_summary_metric_t *metric, json_t *obj)
+{
+    metric->count = json_integer_value(json_object_get(obj, "count"));
+    metric->min = json_number_value(json_object_get(obj, "min"));
+    metric->max = json_number_value(json_object_get(obj, "max"));
+    metric->avg = json_number_value(json_object_get(obj, "avg"));
+    metric->p50 = json_number_value(json_object_get(obj, "p50"));
+    metric->p90 = json_number_value(json_object_get(obj, "p90"));
+    metric->p95 = json_number_value(json_object_get(obj, "p95"));
+    metric->p99 = json_number_value(json_object_get(obj, "p99"));
+}
+
+bool osandroid_streaming_summary_json_parse(streaming_summary_t *summary, const char *rep_buf)
+{
+    json_error_t error;
+    json_t *root = json_loads(rep_buf, 0, &error);
+    json_t *params, *report;
+
+    if (!root)
+    {
+        LOGE("Parsing streaming summary JSON failed");
+        return false;
+    }
+
+    params = json_object_get(root, "params");
+    report = json_object_get(json_array_get(params, 0), "summary");
+    if (!json_is_object(report))
+    {
+        LOGE("%s: No summary in reply", __func__);
+        json_decref(root);
+        return false;
+    }
+
+    summary->window_ms = json_integer_value(json_object_get(report, "window_ms"));
+    summary->samples = json_integer_value(json_object_get(report, "samples"));
+    osandroid_streaming_summary_metric_parse(&summary->bit_rate, json_object_get(report, "bit_rate"));
+    osandroid_streaming_summary_metric_parse(&summary->frame_rate, json_object_get(report, "frame_rate"));
+    osandroid_streaming_summary_metric_parse(&summary->drop_rate, json_object_get(report, "drop_rate"));
+
+    json_decref(root);
+    return true;
+}
+
+bool osandroid_streaming_summary_get(streaming_summary_t *summary)
+{
+    char *rep_buf = NULL;
+    bool ret = false;
+
+    json_t *msg = osandroid_ipc_build_header(__func__);
+    if (!msg)
+    {
+        LOGE("%s: Failed to build IPC message header", __func__);
+        return false;
+    }
+
+    /* The histograms make the reply larger than ZMQ_MSG_MAX_LEN */
+    rep_buf = MALLOC(OSANDROID_STREAMING_REP_LEN);
+    ret = osandroid_ipc_request(msg, rep_buf, OSANDROID_STREAMING_REP_LEN);
+    if (!ret)
+    {
+        LOGE("%s: IPC request failed", __func__);
+        goto cleanup;
+    }
+
+    LOGD("%s: %s", __func__, rep_buf);
+    ret = osandroid_streaming_summary_json_parse(summary, rep_buf);
+
+cleanup:
+    if (msg) json_decref(msg);
+    FREE(rep_buf);
 
     return ret;
 }
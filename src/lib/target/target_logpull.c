@@ -25,7 +25,13 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
 #define _GNU_SOURCE
+#include <errno.h>
+#include <pthread.h>
+#include <string.h>
+#include <time.h>
+
 #include "log.h"
+#include "util.h"
 
 /* internal */
 #include "osandroid_ipc.h"
@@ -33,18 +39,151 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 #define MODULE_ID LOG_MODULE_ID_TARGET
 
+/* A lost job event costs at most this long, the job status is polled then */
+#define LOG_PULL_JOB_CHECK_SEC 30
+#define LOG_PULL_JOB_MAX_SEC   600
+
+#define LOG_PULL_JOB_RUNNING 0
+#define LOG_PULL_JOB_DONE    1
+#define LOG_PULL_JOB_FAILED  2
+
+/* The last job that finished according to osandroid_job_event */
+static pthread_mutex_t log_pull_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t log_pull_cond = PTHREAD_COND_INITIALIZER;
+static char log_pull_done_id[64];
+static int log_pull_done_state;
+static bool log_pull_registered;
+
+static int target_log_pull_job_state(json_t *job)
+{
+    const char *state = json_string_value(json_object_get(job, "state"));
+
+    if (!state) return LOG_PULL_JOB_FAILED;
+    if (strcmp(state, "done") == 0) return LOG_PULL_JOB_DONE;
+    if (strcmp(state, "failed") == 0)
+    {
+        LOGE("%s: job %s failed: %s %s",
+             __func__,
+             json_string_value(json_object_get(job, "job_id")),
+             json_string_value(json_object_get(job, "errCode")),
+             json_string_value(json_object_get(job, "errMsg")));
+        return LOG_PULL_JOB_FAILED;
+    }
+    return LOG_PULL_JOB_RUNNING;
+}
+
+static void target_log_pull_job_event_cb(const char *message)
+{
+    json_t *event;
+    json_t *job;
+    const char *job_id;
+    int state;
+
+    event = json_loads(message, 0, NULL);
+    job = json_object_get(json_array_get(json_object_get(event, "params"), 0), "job");
+    job_id = json_string_value(json_object_get(job, "job_id"));
+    state = job_id ? target_log_pull_job_state(job) : LOG_PULL_JOB_RUNNING;
+
+    if (state != LOG_PULL_JOB_RUNNING)
+    {
+        pthread_mutex_lock(&log_pull_lock);
+        STRSCPY(log_pull_done_id, job_id);
+        log_pull_done_state = state;
+        pthread_cond_broadcast(&log_pull_cond);
+        pthread_mutex_unlock(&log_pull_lock);
+    }
+
+    json_decref(event);
+}
+
+/* Fallback when no job event came: one osandroid_job_status_get */
+static int target_log_pull_job_poll(const char *job_id)
+{
+    json_t *json_root;
+    json_t *json_rep;
+    char json_res[ZMQ_MSG_MAX_LEN];
+    int state = LOG_PULL_JOB_RUNNING;
+
+    json_root = json_pack("{s:s, s:{s:s}}", "api", "osandroid_job_status_get", "params", "job_id", job_id);
+    if (!json_root) return state;
+
+    if (osandroid_ipc_request(json_root, json_res, ZMQ_MSG_MAX_LEN))
+    {
+        json_rep = json_loads(json_res, 0, NULL);
+        state = target_log_pull_job_state(
+                json_object_get(json_array_get(json_object_get(json_rep, "params"), 0), "job"));
+        if (json_rep) json_decref(json_rep);
+    }
+
+    json_decref(json_root);
+    return state;
+}
+
+/* Wait for the osandroid_job_event that ends the job started by the log pull request */
+static bool target_log_pull_wait(const char *job_id)
+{
+    struct timespec until;
+    int state = LOG_PULL_JOB_RUNNING;
+    int waited = 0;
+    int rc;
+
+    pthread_mutex_lock(&log_pull_lock);
+    while (waited < LOG_PULL_JOB_MAX_SEC)
+    {
+        if (strcmp(log_pull_done_id, job_id) == 0)
+        {
+            state = log_pull_done_state;
+            break;
+        }
+
+        clock_gettime(CLOCK_REALTIME, &until);
+        until.tv_sec += LOG_PULL_JOB_CHECK_SEC;
+        rc = pthread_cond_timedwait(&log_pull_cond, &log_pull_lock, &until);
+        if (rc != ETIMEDOUT) continue;
+
+        waited += LOG_PULL_JOB_CHECK_SEC;
+        pthread_mutex_unlock(&log_pull_lock);
+        state = target_log_pull_job_poll(job_id);
+        pthread_mutex_lock(&log_pull_lock);
+        if (state != LOG_PULL_JOB_RUNNING) break;
+    }
+    pthread_mutex_unlock(&log_pull_lock);
+
+    if (state == LOG_PULL_JOB_RUNNING)
+    {
+        LOGE("%s: job %s not finished after %d s", __func__, job_id, LOG_PULL_JOB_MAX_SEC);
+    }
+    return state == LOG_PULL_JOB_DONE;
+}
+
 bool target_log_pull_ext(const char *upload_location, const char *upload_token, const char *upload_method)
 {
     json_t *json_root = NULL;
+    json_t *json_rep = NULL;
     char json_res[ZMQ_MSG_MAX_LEN];
+    const char *job_id;
     bool ret = false;
 
     osandroid_ipc_init();
 
+    /* Subscribed before the job exists, the publisher holds its events until then */
+    pthread_mutex_lock(&log_pull_lock);
+    if (!log_pull_registered)
+    {
+        log_pull_registered = osandroid_subscriber_register(ANDROID_EVENT_JOB, target_log_pull_job_event_cb);
+    }
+    pthread_mutex_unlock(&log_pull_lock);
+
+    /*
+     * Log pull takes longer than the IPC receive timeout, run it as an async
+     * job and wait for the osandroid_job_event of its end
+     */
     json_root = json_pack(
-            "{s:s, s:{s:s, s:s}}",
+            "{s:s, s:b, s:{s:s, s:s, s:s}}",
             "api",
             __func__,
+            "async",
+            true,
             "params",
             "upload_location",
             upload_location,
@@ -59,9 +198,25 @@ bool target_log_pull_ext(const char *upload_location, const char *upload_token,
         goto end;
     }
 
-    ret = osandroid_ipc_request(json_root, json_res, ZMQ_MSG_MAX_LEN);
+    if (!osandroid_ipc_request(json_root, json_res, ZMQ_MSG_MAX_LEN))
+    {
+        ret = false;
+        goto end;
+    }
+
+    json_rep = json_loads(json_res, 0, NULL);
+    job_id = json_string_value(json_object_get(json_rep, "job_id"));
+    if (!job_id)
+    {
+        LOGE("%s: log pull not started: %s", __func__, json_res);
+        ret = false;
+        goto end;
+    }
+
+    ret = target_log_pull_wait(job_id);
 
 end:
+    if (json_rep) json_decref(json_rep);
     if (json_root) json_decref(json_root);
 
     return ret;